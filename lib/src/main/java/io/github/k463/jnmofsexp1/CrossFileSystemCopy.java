@@ -0,0 +1,316 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copies and moves between different FileSystems, at least one of which is a
+ * jnmofs filesystem, e.g. to persist results to, or load inputs from, the
+ * default filesystem.
+ * <p>
+ * {@link Files#copy(Path, Path, CopyOption...)} between providers copies
+ * through streams, one small buffer at a time, and can only move empty
+ * directories. Here, file contents leave jnmofs through
+ * {@link FileChannel#transferTo}, which hands the other channel the stored
+ * pages themselves, and enter it through a large direct buffer, so the other
+ * filesystem sees few large reads and writes. Directory trees are copied in
+ * parallel by fork/join tasks, each directory is created before any of its
+ * members.
+ */
+final class CrossFileSystemCopy {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Maximum number of members of a directory copied by a single task
+    private static final int COPY_BATCH = 64;
+    // Like the JDK's own temporary direct buffers, kept per thread rather
+    // than allocated for every file
+    private static final ThreadLocal<ByteBuffer> buffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private CrossFileSystemCopy() {}
+
+    /**
+     * Copy {@code source} to {@code target} on another FileSystem, like
+     * {@link Files#copy(Path, Path, CopyOption...)} does. Directories are
+     * copied with all of their members if {@link JnmofsCopyOption#RECURSIVE}
+     * is given, and timestamps are copied if
+     * {@link StandardCopyOption#COPY_ATTRIBUTES} is given and the target
+     * supports setting them.
+     */
+    static void copy(Path source, Path target, Set<CopyOption> options)
+        throws IOException {
+        if (options.contains(StandardCopyOption.ATOMIC_MOVE)) {
+            throw new UnsupportedOperationException(
+                "ATOMIC_MOVE is not supported for copies"
+            );
+        }
+        boolean copyAttributes = options.contains(
+            StandardCopyOption.COPY_ATTRIBUTES
+        );
+        BasicFileAttributes attrs = Files.readAttributes(
+            source,
+            BasicFileAttributes.class
+        );
+        if (options.contains(StandardCopyOption.REPLACE_EXISTING)) {
+            Files.deleteIfExists(target);
+        } else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+
+        if (!attrs.isDirectory()) {
+            copyFile(source, target);
+            if (copyAttributes) copyTimes(attrs, target);
+        } else if (options.contains(JnmofsCopyOption.RECURSIVE)) {
+            try {
+                new TreeCopyTask(source, target, attrs, copyAttributes)
+                    .invoke();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            Files.createDirectory(target);
+            if (copyAttributes) copyTimes(attrs, target);
+        }
+    }
+
+    /**
+     * Move {@code source} to {@code target} on another FileSystem, by copying
+     * it with all of its members and timestamps, then deleting it.
+     */
+    static void move(Path source, Path target, Set<CopyOption> options)
+        throws IOException {
+        if (options.contains(StandardCopyOption.ATOMIC_MOVE)) {
+            throw new AtomicMoveNotSupportedException(
+                source.toString(),
+                target.toString(),
+                "atomic moves only supported on the same FileSystem"
+            );
+        }
+        copy(
+            source,
+            target,
+            options.contains(StandardCopyOption.REPLACE_EXISTING)
+                ? Set.of(
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES,
+                    JnmofsCopyOption.RECURSIVE
+                )
+                : Set.of(
+                    StandardCopyOption.COPY_ATTRIBUTES,
+                    JnmofsCopyOption.RECURSIVE
+                )
+        );
+        Files.walkFileTree(
+            source,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(
+                    Path file,
+                    BasicFileAttributes attrs
+                ) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(
+                    Path dir,
+                    IOException e
+                ) throws IOException {
+                    if (e != null) throw e;
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+        );
+    }
+
+    private static void copyFile(Path source, Path target)
+        throws IOException {
+        try (
+            FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(
+                target,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            if (source.getFileSystem() instanceof JnmofsFileSystem) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long n = in.transferTo(position, size - position, out);
+                    if (n <= 0) break;
+                    position += n;
+                }
+            } else {
+                ByteBuffer buffer = buffers.get();
+                while (in.read(buffer.clear()) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+            }
+        }
+    }
+
+    // Best effort, not every filesystem supports setting all timestamps
+    private static void copyTimes(BasicFileAttributes attrs, Path target)
+        throws IOException {
+        BasicFileAttributeView view = Files.getFileAttributeView(
+            target,
+            BasicFileAttributeView.class
+        );
+        if (view == null) return;
+        view.setTimes(
+            attrs.lastModifiedTime(),
+            attrs.lastAccessTime(),
+            attrs.creationTime()
+        );
+    }
+
+    // Copies the source directory to target, creating target first, then
+    // copying members in batches of COPY_BATCH and subdirectories in tasks of
+    // their own
+    private static final class TreeCopyTask extends RecursiveAction {
+
+        private final Path source;
+        private final Path target;
+        private final BasicFileAttributes attrs;
+        private final boolean copyAttributes;
+
+        TreeCopyTask(
+            Path source,
+            Path target,
+            BasicFileAttributes attrs,
+            boolean copyAttributes
+        ) {
+            this.source = source;
+            this.target = target;
+            this.attrs = attrs;
+            this.copyAttributes = copyAttributes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectory(target);
+                List<Path> members = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                    source
+                )) {
+                    stream.forEach(members::add);
+                }
+
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for (int i = 0; i < members.size(); i += COPY_BATCH) {
+                    tasks.add(
+                        new BatchCopyTask(
+                            members.subList(
+                                i,
+                                Math.min(i + COPY_BATCH, members.size())
+                            ),
+                            target,
+                            copyAttributes
+                        )
+                    );
+                }
+                invokeAll(tasks);
+                // after the members, as adding them changes the times
+                if (copyAttributes) copyTimes(attrs, target);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Copies files of a directory, handing subdirectories to tasks of their
+    // own
+    private static final class BatchCopyTask extends RecursiveAction {
+
+        private final List<Path> members;
+        private final Path targetDir;
+        private final boolean copyAttributes;
+
+        BatchCopyTask(
+            List<Path> members,
+            Path targetDir,
+            boolean copyAttributes
+        ) {
+            this.members = members;
+            this.targetDir = targetDir;
+            this.copyAttributes = copyAttributes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<TreeCopyTask> subdirs = new ArrayList<>();
+                for (Path member : members) {
+                    // names are passed as strings, as paths of different
+                    // filesystems can't be resolved against each other
+                    Path target = targetDir.resolve(
+                        member.getFileName().toString()
+                    );
+                    BasicFileAttributes attrs = Files.readAttributes(
+                        member,
+                        BasicFileAttributes.class
+                    );
+                    if (attrs.isDirectory()) {
+                        subdirs.add(
+                            new TreeCopyTask(
+                                member,
+                                target,
+                                attrs,
+                                copyAttributes
+                            )
+                        );
+                    } else {
+                        copyFile(member, target);
+                        if (copyAttributes) copyTimes(attrs, target);
+                    }
+                }
+                invokeAll(subdirs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
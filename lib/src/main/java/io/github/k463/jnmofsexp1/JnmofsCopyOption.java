@@ -0,0 +1,41 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1;
+
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+
+/**
+ * Copy options specific to jnmofs, for
+ * {@link java.nio.file.Files#copy(Path, Path, CopyOption...)} between paths of
+ * the same {@link JnmofsFileSystem}, see {@link JnmofsFiles} for copies to
+ * and from other filesystems.
+ */
+public enum JnmofsCopyOption implements CopyOption {
+    /**
+     * Copy a directory together with everything below it, rather than just
+     * creating an empty directory.
+     * <p>
+     * The copy is built in parallel, with subdirectories and large
+     * directories split into {@link java.util.concurrent.ForkJoinPool}
+     * tasks, and only becomes visible at the target once it's complete.
+     * Changes made to the source tree while it's being copied may or may not
+     * be part of the copy.
+     */
+    RECURSIVE,
+}
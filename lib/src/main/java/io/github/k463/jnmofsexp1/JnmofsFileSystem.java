@@ -17,27 +17,38 @@
  */
 package io.github.k463.jnmofsexp1;
 
+import io.github.k463.jnmofsexp1.impl.PageAllocator;
+import io.github.k463.jnmofsexp1.impl.PageCompressor;
+import io.github.k463.jnmofsexp1.trace.TraceEvent;
+import io.github.k463.jnmofsexp1.trace.Tracer;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
-import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -45,12 +56,29 @@ import java.util.stream.StreamSupport;
 
 public class JnmofsFileSystem extends FileSystem {
 
+    private static final System.Logger LOG = System.getLogger(
+        JnmofsFileSystem.class.getName()
+    );
+
     private final Map<Path, JnmofsFileSystemNamespace> namespaces;
     private final JnmofsFileSystemProvider fsProvider;
     private final List<String> roots;
-    private final List<Pattern> rootPatterns;
+    private final RootMatcher rootMatcher;
+    private final List<Path> rootDirectories;
     private final String separator;
     private final URI uri;
+    private final PageAllocator pageAllocator;
+    // both null unless file contents are compressed when unused
+    private final PageCompressor pageCompressor;
+    private final ScheduledExecutorService compressionScheduler;
+    // channels that are still open, closed along with the FileSystem
+    private final Set<FileChannel> openChannels =
+        ConcurrentHashMap.newKeySet();
+    private final Tracer tracer;
+    // serializes moves of directories across all namespaces, see
+    // JnmofsFileSystemNamespace.move
+    private final ReentrantLock directoryMoveLock = new ReentrantLock();
+    private volatile boolean open = true;
 
     JnmofsFileSystem(
         JnmofsFileSystemProvider provider,
@@ -62,8 +90,34 @@ public class JnmofsFileSystem extends FileSystem {
 
         Map<String, Object> props = new HashMap<String, Object>(env);
 
+        this.tracer = createTracer(props);
+        long start = tracer.startNanos();
+
         this.separator = props.getOrDefault("separator", "/").toString();
 
+        // where file contents are stored, either on the Java heap (default) or
+        // off-heap so that large amounts of file data don't add to GC work
+        String storage = props
+            .getOrDefault("storage", PageAllocator.HEAP)
+            .toString();
+        this.pageAllocator = PageAllocator.forStorage(storage);
+
+        // store identical pages of different files only once, at the cost of
+        // hashing pages whenever a channel that wrote to them is closed
+        boolean dedup = Boolean.parseBoolean(
+            props.getOrDefault("dedup", false).toString()
+        );
+
+        // compress the contents of files that weren't used for compress.idle
+        // milliseconds, in the background
+        boolean compress = Boolean.parseBoolean(
+            props.getOrDefault("compress", false).toString()
+        );
+        long compressIdle = Long.parseLong(
+            props.getOrDefault("compress.idle", 60_000).toString()
+        );
+        this.pageCompressor = compress ? new PageCompressor() : null;
+
         // allow configuring roots, but default to a single root with name ""
         List<String> configuredRoots = props
             .entrySet()
@@ -74,24 +128,12 @@ public class JnmofsFileSystem extends FileSystem {
             .toList();
         this.roots = configuredRoots.isEmpty() ? List.of("") : configuredRoots;
 
-        // Matching paths against roots is done quite often through getPath so
-        // pre-create the compiled patterns; sort them by longest first so that
-        // nested roots are detected correctly.
-        this.rootPatterns = roots
+        // Matching paths against roots is done on every getPath call, so
+        // prepare a matcher that finds the longest matching root in one pass.
+        this.rootMatcher = new RootMatcher(roots, separator);
+        this.rootDirectories = roots
             .stream()
-            .sorted(
-                Comparator.comparingInt(String::length)
-                    .reversed()
-                    .thenComparing(String::compareTo)
-            )
-            .map(r ->
-                Pattern.compile(
-                    "^(?<root>%s)(?:%s(?<path>.*)|)$".formatted(
-                        Pattern.quote(r),
-                        Pattern.quote(separator)
-                    )
-                )
-            )
+            .map((String t) -> (Path) new SimplePath(this, Optional.of(t), ""))
             .toList();
 
         // initialise namespace stores for each of the roots
@@ -104,20 +146,42 @@ public class JnmofsFileSystem extends FileSystem {
             .collect(
                 Collectors.toUnmodifiableMap(
                     Function.identity(),
-                    JnmofsFileSystemNamespace::new
+                    root ->
+                        new JnmofsFileSystemNamespace(
+                            root,
+                            pageAllocator,
+                            dedup,
+                            pageCompressor,
+                            openChannels,
+                            tracer,
+                            directoryMoveLock
+                        )
                 )
             );
 
-        System.out.println(
-            "JnmofsFileSystem(%s, %s, %s)\n  separator=%s\n  roots=%s, .namespaces=%s".formatted(
-                provider,
-                uri,
-                env,
-                separator,
-                roots,
-                namespaces
-            )
-        );
+        // A file is compressed by the first pass that finds it wasn't used
+        // since the pass before, so after between one and two intervals.
+        if (compress) {
+            this.compressionScheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform()
+                        .name("jnmofs-compress")
+                        .daemon()
+                        .factory()
+                );
+            compressionScheduler.scheduleWithFixedDelay(
+                this::runCompressionPass,
+                compressIdle,
+                compressIdle,
+                TimeUnit.MILLISECONDS
+            );
+        } else {
+            this.compressionScheduler = null;
+        }
+
+        for (Path root : namespaces.keySet()) {
+            tracer.record(TraceEvent.Op.INIT, root, 0, start);
+        }
     }
 
     @Override
@@ -127,16 +191,30 @@ public class JnmofsFileSystem extends FileSystem {
 
     @Override
     public void close() throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'close'");
+        if (!open) return;
+        open = false;
+        fsProvider.removeFileSystem(uri, this);
+        if (compressionScheduler != null) {
+            // a pass that's running may still be using pages and compressors,
+            // interrupting it makes it stop at the next file
+            compressionScheduler.shutdownNow();
+            awaitTermination(compressionScheduler);
+            pageCompressor.close();
+        }
+        // Closing a channel waits for its operations that are under way, and
+        // fails any later ones, so that none of them touches the contents
+        // once they're freed below.
+        for (FileChannel channel : openChannels) {
+            channel.close();
+        }
+        // all file contents are dropped along with the FileSystem, so release
+        // the memory backing them right away
+        pageAllocator.close();
     }
 
     @Override
     public boolean isOpen() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException(
-            "Unimplemented method 'isOpen'"
-        );
+        return open;
     }
 
     @Override
@@ -147,6 +225,15 @@ public class JnmofsFileSystem extends FileSystem {
         );
     }
 
+    /**
+     * Tracer recording the operations performed on this FileSystem, disabled
+     * unless enabled through the {@code trace} or {@code trace.sink} env
+     * options.
+     */
+    public Tracer tracer() {
+        return tracer;
+    }
+
     @Override
     public String getSeparator() {
         return separator;
@@ -154,10 +241,7 @@ public class JnmofsFileSystem extends FileSystem {
 
     @Override
     public Iterable<Path> getRootDirectories() {
-        return roots
-            .stream()
-            .map((String t) -> (Path) new SimplePath(this, Optional.of(t), ""))
-            .toList();
+        return rootDirectories;
     }
 
     @Override
@@ -172,6 +256,71 @@ public class JnmofsFileSystem extends FileSystem {
     // makes it impossible to implement FileSystemProvider.getFileStore(Path)
     // using only NIO.2 interfaces.
     public FileStore getFileStore(Path path) {
+        return getNamespace(path);
+    }
+
+    /**
+     * Resolve {@code path} to a handle of the object currently at it, for
+     * repeated operations on that object that don't have to look the path up
+     * again, see {@link JnmofsPathHandle}.
+     *
+     * @throws NoSuchFileException if there's nothing at {@code path}
+     */
+    public JnmofsPathHandle getHandle(Path path) throws NoSuchFileException {
+        return getNamespace(path).getHandle(path);
+    }
+
+    /**
+     * Compress the contents of all files that weren't used since the last
+     * call, see {@link JnmofsFileSystemNamespace#compressColdFiles()}; called
+     * periodically when compression is enabled (env {@code compress}).
+     */
+    void compressColdFiles() {
+        for (JnmofsFileSystemNamespace namespace : namespaces.values()) {
+            if (!open) return;
+            namespace.compressColdFiles();
+        }
+    }
+
+    // An exception escaping a periodic task would cancel all later passes
+    // without a trace, so it's logged and the next pass tries again
+    private void runCompressionPass() {
+        try {
+            compressColdFiles();
+        } catch (RuntimeException e) {
+            LOG.log(
+                System.Logger.Level.WARNING,
+                "Compressing unused file contents failed",
+                e
+            );
+        }
+    }
+
+    // Wait for the executor to finish, without giving up when interrupted, as
+    // the resources it uses must not be freed before then
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Namespace the given path belongs to. It's determined by the root of the
+     * path once it's made absolute, which never changes for a given path, so
+     * the result is cached on the path.
+     */
+    JnmofsFileSystemNamespace getNamespace(Path path) {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
         if (!this.equals(path.getFileSystem())) {
             throw new IllegalArgumentException(
                 "Path %s is associated with a different FileSystem than this (%s)".formatted(
@@ -180,8 +329,14 @@ public class JnmofsFileSystem extends FileSystem {
                 )
             );
         }
-        Path root = path.normalize().toAbsolutePath().getRoot();
-        if (!namespaces.containsKey(root)) {
+        // all paths of this filesystem are SimplePaths
+        SimplePath simplePath = (SimplePath) path;
+        JnmofsFileSystemNamespace namespace = simplePath.namespace();
+        if (namespace != null) return namespace;
+
+        Path root = simplePath.storePath().getRoot();
+        namespace = namespaces.get(root);
+        if (namespace == null) {
             throw new IllegalArgumentException(
                 "Path's (%s) root (%s) not found in this FileSystem".formatted(
                     path,
@@ -189,7 +344,8 @@ public class JnmofsFileSystem extends FileSystem {
                 )
             );
         }
-        return namespaces.get(root);
+        simplePath.bindNamespace(namespace);
+        return namespace;
     }
 
     @Override
@@ -268,7 +424,7 @@ public class JnmofsFileSystem extends FileSystem {
                 Path::toString
             )
         ).collect(Collectors.joining("/"));
-        if (Files.isDirectory(absPath)) {
+        if (getNamespace(absPath).isDirectory(absPath)) {
             uriPath = uriPath + "/";
         }
         // System.out.println(
@@ -304,11 +460,11 @@ public class JnmofsFileSystem extends FileSystem {
     /**
      * Splits the given path string into a root and the remaining subpath.
      * <p>
-     * This method checks if the input path matches any of the configured roots using
-     * regular expressions, ensuring that only correct subpaths are matched (not just substrings).
+     * This method checks if the input path matches any of the configured roots, ensuring that
+     * only correct subpaths are matched (not just substrings), see {@link RootMatcher}.
      * <p>
-     * The roots are checked in order from the longest to the shortest, so that nested roots
-     * are correctly identified and the most specific root is matched first.
+     * The longest matching root is used, so that nested roots are correctly identified and the
+     * most specific root is matched.
      * <p>
      * If the path starts with the separator but does not match any configured root,
      * an {@link InvalidPathException} is thrown.
@@ -321,37 +477,60 @@ public class JnmofsFileSystem extends FileSystem {
     private JnmofsFileSystem.SplitRootPathResult splitRootPath(String in) {
         Objects.requireNonNull(in);
 
-        Optional<String> root = Optional.empty();
+        String root = rootMatcher.match(in);
         String path = in;
-
-        for (Pattern rootp : rootPatterns) {
-            Matcher m = rootp.matcher(in);
-            if (!m.matches()) continue;
-
-            root = Optional.ofNullable(m.group("root"));
-            path = Optional.ofNullable(m.group("path")).orElse("");
-            // System.out.println(
-            //     "JnmofsFileSystem().splitRootPath(%s): m=%s, grp[root]=%s, grp[path]=%s".formatted(
-            //         in,
-            //         m,
-            //         m.group("root"),
-            //         m.group("path")
-            //     )
-            // );
-            break; // NOPMD - match found, no need to continue
+        if (root != null) {
+            int pathStart = root.length() + getSeparator().length();
+            path = pathStart < in.length() ? in.substring(pathStart) : "";
         }
 
         // TODO: we don't know for sure if the given path is meant to be absolute
         // if the path starts with the separator, but doesn't match configured roots
         // should we still treat it as relative? Might be confusing, so for now fail.
-        if (root.isEmpty() && path.startsWith(getSeparator())) {
+        if (root == null && path.startsWith(getSeparator())) {
             throw new InvalidPathException(
                 path,
                 "path starts with separator but doesn't match any of the configured FileSystem roots"
             );
         }
 
-        return new SplitRootPathResult(root, path);
+        return new SplitRootPathResult(Optional.ofNullable(root), path);
+    }
+
+    /**
+     * Create the tracer configured by the given env options:
+     * <ul>
+     * <li>{@code trace}: {@code true} to enable tracing, defaults to whether a
+     * sink is configured
+     * <li>{@code trace.buffer.size}: number of recent events to keep in memory
+     * <li>{@code trace.sink}: a {@code Consumer<TraceEvent>} every event is
+     * passed to, or {@code "stdout"} to print events to standard output
+     * </ul>
+     */
+    @SuppressWarnings("unchecked")
+    private static Tracer createTracer(Map<String, Object> props) {
+        Object sinkProp = props.get("trace.sink");
+        boolean enabled = Boolean.parseBoolean(
+            props.getOrDefault("trace", sinkProp != null).toString()
+        );
+        if (!enabled) {
+            return Tracer.disabled();
+        }
+
+        int capacity = Integer.parseInt(
+            props.getOrDefault("trace.buffer.size", 4096).toString()
+        );
+        Consumer<? super TraceEvent> sink = switch (sinkProp) {
+            case null -> null;
+            case Consumer<?> c -> (Consumer<? super TraceEvent>) c;
+            case String s when "stdout".equals(s) -> System.out::println;
+            default -> throw new IllegalArgumentException(
+                "trace.sink should be a Consumer<TraceEvent> or \"stdout\", got: %s".formatted(
+                    sinkProp
+                )
+            );
+        };
+        return Tracer.create(capacity, sink);
     }
 
     private record SplitRootPathResult(Optional<String> root, String path) {}
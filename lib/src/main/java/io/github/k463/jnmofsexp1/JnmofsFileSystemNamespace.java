@@ -18,16 +18,20 @@
 package io.github.k463.jnmofsexp1;
 
 import io.github.k463.common.FileOperations;
+import io.github.k463.jnmofsexp1.impl.ChunkStore;
 import io.github.k463.jnmofsexp1.impl.JnmofsDirectory;
 import io.github.k463.jnmofsexp1.impl.JnmofsFileSystemObject;
 import io.github.k463.jnmofsexp1.impl.JnmofsObjectType;
 import io.github.k463.jnmofsexp1.impl.JnmofsRegularFile;
+import io.github.k463.jnmofsexp1.impl.PageAllocator;
+import io.github.k463.jnmofsexp1.impl.PageCompressor;
+import io.github.k463.jnmofsexp1.trace.TraceEvent;
+import io.github.k463.jnmofsexp1.trace.Tracer;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
-import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
@@ -35,7 +39,6 @@ import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystemException;
-import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
@@ -47,29 +50,60 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
-import java.util.ConcurrentModificationException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 // assumption: methods in this class are only called from JnmofsFileSystem and
 // JnmofsFileSystemProvider after resolving the given path to the correct
 // namespace, so we know the first path argument in every method belongs to
 // this namespace.
+//
+// Operations that change the tree lock the directories they change, plus any
+// directory being removed or moved, using the lock of each JnmofsDirectory, so
+// operations on different directories never contend. The objects involved are
+// looked up without any locks, and checked again once all locks are held: if
+// anything changed in the meantime, the locks are released and the operation
+// starts over. Lookups don't take any locks at all.
 public class JnmofsFileSystemNamespace
     extends FileStore
     implements FileOperations {
 
-    private final Map<Path, JnmofsFileSystemObject> index =
-        new ConcurrentHashMap<>();
+    // Objects are only reachable by walking down the tree from here, so that
+    // renaming or moving a directory only has to relink the directory itself.
+    private final JnmofsDirectory rootDir = new JnmofsDirectory();
     private final Path rootPath;
-
-    JnmofsFileSystemNamespace(Path rootPath) {
+    private final PageAllocator pageAllocator;
+    // null unless files are deduplicated, see JnmofsRegularFile#openChannel
+    private final ChunkStore chunkStore;
+    // null unless unused file contents are compressed, see compressColdFiles
+    private final PageCompressor pageCompressor;
+    // open channels of the whole FileSystem, see JnmofsFileSystem#close
+    private final Set<FileChannel> openChannels;
+    private final Tracer tracer;
+    private final ReentrantLock directoryMoveLock;
+    // Incremented whenever an object is deleted or moved, i.e. whenever a
+    // path that led to an object might no longer do so, see JnmofsPathHandle
+    private final AtomicLong structureVersion = new AtomicLong();
+
+    JnmofsFileSystemNamespace(
+        Path rootPath,
+        PageAllocator pageAllocator,
+        boolean dedup,
+        PageCompressor pageCompressor,
+        Set<FileChannel> openChannels,
+        Tracer tracer,
+        ReentrantLock directoryMoveLock
+    ) {
         if (!rootPath.isAbsolute()) {
             throw new IllegalArgumentException(
                 "FS Namespace root path should be absolute: %s".formatted(
@@ -78,13 +112,46 @@ public class JnmofsFileSystemNamespace
             );
         }
         this.rootPath = rootPath;
+        this.pageAllocator = pageAllocator;
+        this.chunkStore = dedup ? new ChunkStore() : null;
+        this.pageCompressor = pageCompressor;
+        this.openChannels = openChannels;
+        this.tracer = tracer;
+        this.directoryMoveLock = directoryMoveLock;
+    }
 
-        // initialise root directory, NoSuchFile happens if the parent doesn't
-        // exist which isn't checked for root, AlreadyExists also can't happen
-        // on init, so ignore them
-        try {
-            createFsObject(rootPath, JnmofsObjectType.DIRECTORY);
-        } catch (NoSuchFileException | FileAlreadyExistsException e) {} // NOPMD
+    /**
+     * Store that files in this namespace share identical pages through, or
+     * {@code null} if deduplication isn't enabled (env {@code dedup}).
+     */
+    ChunkStore chunkStore() {
+        return chunkStore;
+    }
+
+    /**
+     * Let every file in this namespace compress its contents if it wasn't used
+     * since the last call, see {@link JnmofsRegularFile#compressIfCold()}.
+     * Files created, moved or deleted while the tree is walked may or may not
+     * be visited. Stops early if the thread is interrupted, e.g. because the
+     * FileSystem is being closed.
+     * <p>
+     * Must not be called concurrently.
+     */
+    void compressColdFiles() {
+        Deque<JnmofsDirectory> pending = new ArrayDeque<>();
+        pending.push(rootDir);
+        while (!pending.isEmpty()) {
+            JnmofsDirectory dir = pending.pop();
+            for (String name : dir.getMembers()) {
+                if (Thread.currentThread().isInterrupted()) return;
+                JnmofsFileSystemObject member = dir.getMember(name);
+                if (member instanceof JnmofsRegularFile file) {
+                    file.compressIfCold();
+                } else if (member instanceof JnmofsDirectory subdir) {
+                    pending.push(subdir);
+                }
+            }
+        }
     }
 
     // FileStore methods
@@ -109,28 +176,29 @@ public class JnmofsFileSystemNamespace
         );
     }
 
+    // All namespaces of a FileSystem store file contents in the same memory,
+    // like subvolumes sharing a pool, so their space is that of the whole
+    // FileSystem: up to as much memory as its storage mode may use, minus
+    // what the contents currently take up, counting compressed pages at
+    // their compressed size.
+
     @Override
     public long getTotalSpace() throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException(
-            "Unimplemented method 'getTotalSpace'"
-        );
+        return pageAllocator.capacity();
     }
 
     @Override
     public long getUsableSpace() throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException(
-            "Unimplemented method 'getUsableSpace'"
-        );
+        return getUnallocatedSpace();
     }
 
     @Override
     public long getUnallocatedSpace() throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException(
-            "Unimplemented method 'getUnallocatedSpace'"
-        );
+        long used = pageAllocator.allocatedBytes();
+        if (pageCompressor != null) {
+            used += pageCompressor.compressedBytes();
+        }
+        return Math.max(0, getTotalSpace() - used);
     }
 
     @Override
@@ -222,21 +290,7 @@ public class JnmofsFileSystemNamespace
         Set<? extends OpenOption> options,
         FileAttribute<?>... attrs
     ) throws IOException {
-        StandardOpenOption[] unsupported = new StandardOpenOption[] {
-            StandardOpenOption.DELETE_ON_CLOSE,
-            StandardOpenOption.DSYNC,
-            StandardOpenOption.SPARSE,
-            StandardOpenOption.SYNC,
-        };
-        if (hasAnyOpt(options, unsupported)) {
-            throw new UnsupportedOperationException(
-                "Options %s are unsupported".formatted(List.of(unsupported))
-            );
-        }
-        if (
-            hasAnyOpt(options, StandardOpenOption.APPEND) &&
-            !hasAnyOpt(options, StandardOpenOption.WRITE)
-        ) {}
+        checkOpenOptions(options);
 
         Optional<JnmofsFileSystemObject> fsObject = findFsObject(path);
 
@@ -247,27 +301,35 @@ public class JnmofsFileSystemNamespace
                     StandardOpenOption.CREATE,
                     StandardOpenOption.CREATE_NEW
                 ) ||
-                !hasAnyOpt(options, StandardOpenOption.WRITE)
+                !hasAnyOpt(
+                    options,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND
+                )
             ) {
                 throw new NoSuchFileException(path.toString());
             }
-            fsObject = Optional.of(createFsObject(path, JnmofsObjectType.FILE));
+            try {
+                fsObject = Optional.of(
+                    createFsObject(path, JnmofsObjectType.FILE)
+                );
+            } catch (FileAlreadyExistsException e) {
+                // created concurrently by another thread, which is fine
+                // unless the caller wants to be the one creating it
+                if (options.contains(StandardOpenOption.CREATE_NEW)) throw e;
+                fsObject = Optional.of(getFsObject(path));
+            }
         } else if (options.contains(StandardOpenOption.CREATE_NEW)) {
             throw new FileAlreadyExistsException(path.toString());
         }
 
-        if (
-            !fsObject.map(o -> o.getAttributes().isRegularFile()).orElse(false)
-        ) {
-            throw new FileSystemException(
-                path.toString(),
-                "",
-                "Not a regular file"
-            );
-        }
-
-        JnmofsRegularFile file = (JnmofsRegularFile) fsObject.get();
-        return file.openChannel(options, attrs);
+        return asRegularFile(path, fsObject.get()).openChannel(
+            path,
+            chunkStore,
+            openChannels,
+            options,
+            attrs
+        );
     }
 
     @Override
@@ -278,140 +340,229 @@ public class JnmofsFileSystemNamespace
 
     @Override
     public void delete(Path path) throws IOException {
-        Path storePath = toStorePath(path);
-        JnmofsFileSystemObject fsObject = getFsObject(storePath);
-
-        if (fsObject.getAttributes().isDirectory()) {
-            JnmofsDirectory fsDir = (JnmofsDirectory) fsObject;
-            if (!fsDir.getMembers().isEmpty()) {
-                throw new DirectoryNotEmptyException(path.toString());
+        long start = tracer.startNanos();
+        SimplePath storePath = toStorePath(path);
+        ensureNotRoot(storePath);
+        String name = nameOf(storePath);
+
+        while (true) {
+            JnmofsDirectory parentDir = getParentDir(storePath);
+            JnmofsFileSystemObject fsObject = parentDir.getMember(name);
+            if (fsObject == null) {
+                throw new NoSuchFileException(path.toString());
             }
-        }
-
-        // System.out.println(
-        //     "JnmofsFileSystemNamespace.delete(%s)".formatted(storePath)
-        // );
-        JnmofsDirectory parentFsd = (JnmofsDirectory) getFsObject(
-            storePath.getParent()
-        );
-        if (index.remove(storePath, fsObject)) {
-            parentFsd.removeMember(storePath.getFileName());
+            List<JnmofsDirectory> locked = lockAll(
+                parentDir,
+                asDirectory(fsObject)
+            );
+            try {
+                if (
+                    lookup(storePath.getParent()) != parentDir ||
+                    parentDir.getMember(name) != fsObject
+                ) continue;
+                unlink(parentDir, name, fsObject, storePath);
+                structureVersion.incrementAndGet();
+            } finally {
+                unlockAll(locked);
+            }
+            tracer.record(TraceEvent.Op.DELETE, storePath, 0, start);
             return;
         }
-        throw new ConcurrentModificationException(
-            "FileSystem object changed in the middle of deletion: %s".formatted(
-                storePath
-            )
-        );
     }
 
+    /**
+     * Copy a file or directory within this FileSystem.
+     * <p>
+     * Copies of regular files share the source file's pages until either file
+     * writes to them, so copying takes the same time and no additional memory
+     * regardless of the size of the file, see {@link JnmofsRegularFile#copy()}.
+     * Like with {@link java.nio.file.Files#copy(Path, Path, CopyOption...)},
+     * copying a directory creates an empty directory, unless
+     * {@link JnmofsCopyOption#RECURSIVE} is given, in which case the whole
+     * tree is copied, see {@link JnmofsDirectory#copyTree()}.
+     */
     @Override
     public void copy(Path source, Path target, CopyOption... options)
         throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'copy'");
+        Objects.requireNonNull(target);
+        long start = tracer.startNanos();
+        Set<CopyOption> optSet = Set.of(options);
+        SimplePath sourceAbs = toStorePath(source);
+        JnmofsFileSystem fs = (JnmofsFileSystem) sourceAbs.getFileSystem();
+
+        if (optSet.contains(StandardCopyOption.ATOMIC_MOVE)) {
+            throw new UnsupportedOperationException(
+                "ATOMIC_MOVE is not supported for copies"
+            );
+        }
+        if (
+            !(target instanceof SimplePath targetPath) ||
+            targetPath.getFileSystem() != fs
+        ) {
+            CrossFileSystemCopy.copy(sourceAbs, target, optSet);
+            tracer.record(TraceEvent.Op.COPY, sourceAbs, 0, start);
+            return;
+        }
+
+        JnmofsFileSystemNamespace targetNs = fs.getNamespace(targetPath);
+        SimplePath targetAbs = targetNs.toStorePath(targetPath);
+        JnmofsFileSystemObject sourceFso = getFsObject(sourceAbs);
+        // copying a file onto itself does nothing
+        if (targetNs.lookup(targetAbs) == sourceFso) return;
+
+        JnmofsFileSystemObject copy;
+        if (sourceFso instanceof JnmofsRegularFile file) {
+            copy = file.copy();
+            if (copy == null) {
+                // deleted concurrently
+                throw new NoSuchFileException(source.toString());
+            }
+        } else if (optSet.contains(JnmofsCopyOption.RECURSIVE)) {
+            ensureNotDescendant(sourceAbs, targetAbs);
+            copy = ((JnmofsDirectory) sourceFso).copyTree();
+        } else {
+            copy = new JnmofsDirectory();
+        }
+
+        try {
+            targetNs.link(
+                targetAbs,
+                copy,
+                optSet.contains(StandardCopyOption.REPLACE_EXISTING)
+            );
+        } catch (IOException | RuntimeException e) {
+            // give the shared pages back
+            if (copy instanceof JnmofsRegularFile file) {
+                file.unlink();
+            } else if (copy instanceof JnmofsDirectory dir) {
+                dir.discardTree();
+            }
+            throw e;
+        }
+        tracer.record(TraceEvent.Op.COPY, sourceAbs, 0, start);
     }
 
     @Override
     public void move(Path source, Path target, CopyOption... options)
         throws IOException {
         Objects.requireNonNull(target);
+        long start = tracer.startNanos();
         Set<CopyOption> optSet = Set.of(options);
-        Path sourceAbs = toStorePath(source);
-        Path targetAbs = target.normalize().toAbsolutePath();
+        SimplePath sourceAbs = toStorePath(source);
 
-        JnmofsFileSystemObject sourceFso = getFsObject(sourceAbs);
+        getFsObject(sourceAbs);
+        ensureNotRoot(sourceAbs);
 
-        boolean sourceIsDir = sourceFso.getAttributes().isDirectory();
-        boolean targetExists = Files.exists(targetAbs);
-        boolean targetIsDir = Files.isDirectory(targetAbs);
         boolean replace = optSet.contains(StandardCopyOption.REPLACE_EXISTING);
-        boolean sameFs = sourceAbs
-            .getFileSystem()
-            .equals(targetAbs.getFileSystem());
-
-        if (targetExists) {
-            if (isSameFile(sourceAbs, targetAbs)) return;
-            if (!targetIsDir && !replace) {
-                throw new FileAlreadyExistsException(targetAbs.toString());
-            }
-            if (targetIsDir && !replace) {
-                // move into another directory without renaming, so actual target is
-                targetAbs = targetAbs.resolve(sourceAbs.getFileName());
-                targetExists = Files.exists(targetAbs);
-                if (targetExists) {
-                    throw new FileAlreadyExistsException(targetAbs.toString());
-                }
-            }
-        }
+        JnmofsFileSystem fs = (JnmofsFileSystem) sourceAbs.getFileSystem();
+
         if (
-            (sourceIsDir || !sameFs) &&
-            optSet.contains(StandardCopyOption.ATOMIC_MOVE)
+            !(target instanceof SimplePath targetPath) ||
+            targetPath.getFileSystem() != fs
         ) {
-            throw new AtomicMoveNotSupportedException(
-                sourceAbs.toString(),
-                targetAbs.toString(),
-                "atomic moves not supported for directories, and only on same FileSystem"
-            );
-        }
-        if (sameFs) {
-            ensureNotDescendant(sourceAbs, targetAbs);
+            CrossFileSystemCopy.move(sourceAbs, target, optSet);
+            tracer.record(TraceEvent.Op.MOVE, sourceAbs, 0, start);
+            return;
         }
 
-        Path targetParent = targetAbs.getParent();
-        if (!Files.exists(targetParent)) {
-            throw new NoSuchFileException(targetParent.toString());
-        } else if (!Files.isDirectory(targetParent)) {
-            throw new NotDirectoryException(targetParent.toString());
+        // we know it's the same FS, but it could be a different namespace;
+        // asking the filesystem directly rather than going through the
+        // provider and FileStore lookup like Files would
+        JnmofsFileSystemNamespace targetNs = fs.getNamespace(targetPath);
+        SimplePath targetAbs = targetNs.toStorePath(targetPath);
+
+        while (true) {
+            JnmofsFileSystemObject sourceFso = getFsObject(sourceAbs);
+            // Moving a directory changes the paths of everything below it, so
+            // two such moves running at once could each move a directory into
+            // the other's subtree without either one noticing. Those are rare
+            // enough to simply run one at a time, like most filesystems do.
+            boolean isDir = sourceFso instanceof JnmofsDirectory;
+            if (isDir) directoryMoveLock.lock();
+            try {
+                if (
+                    tryMove(sourceAbs, sourceFso, targetNs, targetAbs, replace)
+                ) break;
+            } finally {
+                if (isDir) directoryMoveLock.unlock();
+            }
         }
+        tracer.record(TraceEvent.Op.MOVE, sourceAbs, 0, start);
+    }
 
-        // all checks done, start moving
-
-        if (targetExists && replace) {
-            Files.delete(targetAbs);
+    /**
+     * Move {@code sourceFso}, found at {@code sourceAbs}, to {@code targetAbs}
+     * in {@code targetNs}.
+     *
+     * @return {@code false} if the objects involved changed concurrently, in
+     *         which case nothing was moved
+     */
+    private boolean tryMove(
+        SimplePath sourceAbs,
+        JnmofsFileSystemObject sourceFso,
+        JnmofsFileSystemNamespace targetNs,
+        SimplePath targetAbs,
+        boolean replace
+    ) throws IOException {
+        JnmofsFileSystemObject targetFso = targetNs.lookup(targetAbs);
+        if (targetFso == sourceFso) {
+            // both paths lead to the same object, unless another thread just
+            // moved it from one to the other
+            return lookup(sourceAbs) == sourceFso;
         }
-
-        if (!sameFs) {
-            // TODO: copy
-            throw new UnsupportedOperationException(
-                "file/directory copying not supported yet"
-            );
+        if (targetFso instanceof JnmofsDirectory && !replace) {
+            // move into another directory without renaming, so actual target is
+            targetAbs = (SimplePath) targetAbs.resolve(sourceAbs.getFileName());
+            targetFso = targetNs.lookup(targetAbs);
         }
-
-        // we know it's the same FS, but it could be a different namespace, so
-        // retrieve the FileSystemObject using the provider
-        JnmofsFileSystemNamespace targetNs =
-            (JnmofsFileSystemNamespace) targetParent
-                .getFileSystem()
-                .provider()
-                .getFileStore(targetParent);
-        JnmofsDirectory targetParentFso =
-            (JnmofsDirectory) targetNs.getFsObject(targetParent);
-        JnmofsDirectory sourceParentFso = (JnmofsDirectory) getFsObject(
-            sourceAbs.getParent()
+        if (targetFso != null && !replace) {
+            throw new FileAlreadyExistsException(targetAbs.toString());
+        }
+        ensureNotDescendant(sourceAbs, targetAbs);
+
+        JnmofsDirectory sourceParent = getParentDir(sourceAbs);
+        JnmofsDirectory targetParent = targetNs.getParentDir(targetAbs);
+        String sourceName = nameOf(sourceAbs);
+        String targetName = nameOf(targetAbs);
+        List<JnmofsDirectory> locked = lockAll(
+            sourceParent,
+            targetParent,
+            asDirectory(sourceFso),
+            asDirectory(targetFso)
         );
-        List<Path> pathsToMove = index
-            .keySet()
-            .stream()
-            .filter(p -> p.startsWith(sourceAbs))
-            .toList();
-        for (Path srcMember : pathsToMove) {
-            Path targetMember = targetAbs
-                .resolve(sourceAbs.relativize(srcMember))
-                .normalize();
-            targetNs.index.put(targetMember, index.get(srcMember));
-            index.remove(srcMember);
+        try {
+            if (
+                lookup(sourceAbs.getParent()) != sourceParent ||
+                sourceParent.getMember(sourceName) != sourceFso ||
+                targetNs.lookup(targetAbs.getParent()) != targetParent ||
+                targetParent.getMember(targetName) != targetFso
+            ) return false;
+
+            if (targetFso != null) {
+                unlink(targetParent, targetName, targetFso, targetAbs);
+            }
+            // objects don't know their own path, so moving one along with all
+            // of its descendants is just a matter of relinking it
+            targetParent.addMember(targetName, sourceFso);
+            sourceParent.removeMember(sourceName, sourceFso);
+            structureVersion.incrementAndGet();
+            if (targetNs != this) {
+                targetNs.structureVersion.incrementAndGet();
+            }
+            return true;
+        } finally {
+            unlockAll(locked);
         }
-        targetParentFso.addMember(targetAbs.getFileName());
-        sourceParentFso.removeMember(sourceAbs.getFileName());
     }
 
     @Override
     public boolean isSameFile(Path path, Path path2) throws IOException {
-        if (!path.getFileSystem().equals(path2.getFileSystem())) return false;
         if (
-            !equals(path2.getFileSystem().provider().getFileStore(path2))
+            !(path2 instanceof SimplePath simplePath2) ||
+            path2.getFileSystem() != path.getFileSystem()
         ) return false;
+        JnmofsFileSystem fs = (JnmofsFileSystem) path.getFileSystem();
+        if (fs.getNamespace(simplePath2) != this) return false;
 
         JnmofsFileSystemObject fsObject = getFsObject(path);
         JnmofsFileSystemObject fsObject2 = getFsObject(path2);
@@ -432,16 +583,40 @@ public class JnmofsFileSystemNamespace
         getFsObject(path);
     }
 
+    // Probing for files that don't exist is common enough (e.g. looking up
+    // cache entries) that it shouldn't cost an exception each time, so
+    // exists and readAttributesIfExists look the object up directly rather
+    // than going through checkAccess/readAttributes like the defaults do.
+
+    @Override
+    public boolean exists(Path path, LinkOption... options) {
+        // there are no symbolic links, so options don't make a difference
+        return lookup(toStorePath(path)) != null;
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributesIfExists(
+        Path path,
+        Class<A> type,
+        LinkOption... options
+    ) throws IOException {
+        JnmofsFileSystemObject fsObject = lookup(toStorePath(path));
+        return fsObject == null ? null : type.cast(fsObject.getAttributes());
+    }
+
+    boolean isDirectory(Path path) {
+        return lookup(toStorePath(path)) instanceof JnmofsDirectory;
+    }
+
     @Override
     public <V extends FileAttributeView> V getFileAttributeView(
         Path path,
         Class<V> type,
         LinkOption... options
     ) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException(
-            "Unimplemented method 'getFileAttributeView'"
-        );
+        // TODO: no attribute views are supported yet, which callers like
+        // Files.copy(..., COPY_ATTRIBUTES) expect to see as null
+        return null;
     }
 
     @Override
@@ -478,60 +653,186 @@ public class JnmofsFileSystemNamespace
         );
     }
 
+    // Handle support, see JnmofsPathHandle
+
+    JnmofsPathHandle getHandle(Path path) throws NoSuchFileException {
+        SimplePath storePath = toStorePath(path);
+        // read before the lookup, so that any change made after it makes the
+        // handle check its path again
+        long version = structureVersion.get();
+        JnmofsFileSystemObject fsObject = lookup(storePath);
+        if (fsObject == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return new JnmofsPathHandle(this, storePath, fsObject, version);
+    }
+
+    /**
+     * Check whether {@code storePath} still leads to {@code fsObject}, which
+     * it did at structure version {@code version}.
+     *
+     * @return the current structure version if it does, -1 if it doesn't
+     */
+    long validate(
+        SimplePath storePath,
+        JnmofsFileSystemObject fsObject,
+        long version
+    ) {
+        long current = structureVersion.get();
+        if (current == version) return current;
+        return lookup(storePath) == fsObject ? current : -1;
+    }
+
+    FileChannel openChannel(
+        SimplePath storePath,
+        JnmofsFileSystemObject fsObject,
+        Set<? extends OpenOption> options
+    ) throws IOException {
+        checkOpenOptions(options);
+        if (options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(storePath.toString());
+        }
+        return asRegularFile(storePath, fsObject).openChannel(
+            storePath,
+            chunkStore,
+            openChannels,
+            options
+        );
+    }
+
     // Helper methods
 
+    private void checkOpenOptions(Set<? extends OpenOption> options) {
+        StandardOpenOption[] unsupported = new StandardOpenOption[] {
+            StandardOpenOption.DELETE_ON_CLOSE,
+            StandardOpenOption.DSYNC,
+            StandardOpenOption.SPARSE,
+            StandardOpenOption.SYNC,
+        };
+        if (hasAnyOpt(options, unsupported)) {
+            throw new UnsupportedOperationException(
+                "Options %s are unsupported".formatted(List.of(unsupported))
+            );
+        }
+        // like FileChannel.open, appending to a file that is truncated first
+        // is most likely a mistake
+        if (
+            options.contains(StandardOpenOption.APPEND) &&
+            options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            throw new IllegalArgumentException(
+                "APPEND + TRUNCATE_EXISTING not allowed"
+            );
+        }
+    }
+
+    private static JnmofsRegularFile asRegularFile(
+        Path path,
+        JnmofsFileSystemObject fsObject
+    ) throws FileSystemException {
+        if (fsObject instanceof JnmofsRegularFile file) return file;
+        throw new FileSystemException(
+            path.toString(),
+            "",
+            "Not a regular file"
+        );
+    }
+
     private JnmofsFileSystemObject createFsObject(
         Path path,
         JnmofsObjectType type
-    ) throws NoSuchFileException, FileAlreadyExistsException {
+    ) throws FileSystemException {
+        long start = tracer.startNanos();
         JnmofsFileSystemObject res = null;
         switch (type) {
             case FILE:
-                res = new JnmofsRegularFile();
+                res = new JnmofsRegularFile(
+                    pageAllocator,
+                    pageCompressor,
+                    tracer
+                );
                 break;
             case DIRECTORY:
                 res = new JnmofsDirectory();
                 break;
         }
 
-        Path storePath = toStorePath(path);
+        SimplePath storePath = toStorePath(path);
+        link(storePath, res, false);
+        tracer.record(TraceEvent.Op.CREATE, storePath, 0, start);
+        return res;
+    }
 
-        if (index.containsKey(storePath)) {
+    /**
+     * Add {@code fsObject} to the tree at {@code storePath}. Whatever is there
+     * already is replaced if {@code replace} is set, unless it's a directory
+     * that isn't empty.
+     *
+     * @throws FileAlreadyExistsException if there's something at
+     *         {@code storePath} and {@code replace} isn't set
+     */
+    private void link(
+        SimplePath storePath,
+        JnmofsFileSystemObject fsObject,
+        boolean replace
+    ) throws FileSystemException {
+        // the root directory always exists
+        if (storePath.getFileName() == null) {
             throw new FileAlreadyExistsException(storePath.toString());
         }
+        String name = nameOf(storePath);
+        while (true) {
+            JnmofsDirectory parentDir = getParentDir(storePath);
+            JnmofsFileSystemObject existing = replace
+                ? parentDir.getMember(name)
+                : null;
+            if (existing == null) {
+                parentDir.lock();
+                try {
+                    // holding the lock keeps the directory from being removed,
+                    // but it might have been before we got it
+                    if (lookup(storePath.getParent()) != parentDir) continue;
+                    if (!parentDir.addMember(name, fsObject)) {
+                        // created concurrently, replace that instead
+                        if (replace) continue;
+                        throw new FileAlreadyExistsException(
+                            storePath.toString()
+                        );
+                    }
+                } finally {
+                    parentDir.unlock();
+                }
+                return;
+            }
 
-        if (!storePath.equals(storePath.getRoot())) {
-            JnmofsDirectory parentDir = (JnmofsDirectory) getFsObject(
-                storePath.getParent()
+            List<JnmofsDirectory> locked = lockAll(
+                parentDir,
+                asDirectory(existing)
             );
-            parentDir.addMember(storePath.getFileName());
+            try {
+                if (
+                    lookup(storePath.getParent()) != parentDir ||
+                    parentDir.getMember(name) != existing
+                ) continue;
+                unlink(parentDir, name, existing, storePath);
+                structureVersion.incrementAndGet();
+                parentDir.addMember(name, fsObject);
+            } finally {
+                unlockAll(locked);
+            }
+            return;
         }
-        index.put(storePath, res);
-
-        // System.out.println(
-        //     "JnmofsFileSystemNamespace.createFsObject(`%s`) (hashCode=%d); get => %s".formatted(
-        //         storePath,
-        //         storePath.hashCode(),
-        //         index.get(storePath)
-        //     )
-        // );
-        // dumpLs();
-        return res;
     }
 
     /**
      * Ensure {@code target} is not a descendant of {@code source}, as you
      * can't copy or move a directory into a subdirectory of itself.
      *
-     * Assumes both source and target are absolute.
+     * Assumes both source and target are store paths.
      */
-    private void ensureNotDescendant(Path source, Path target) {
-        // extract a subpath of the target path that is at most the same length as
-        // the source path, and check if they're the same path
-        Path targetSub = target
-            .subpath(0, Math.min(source.getNameCount(), target.getNameCount()))
-            .toAbsolutePath();
-        if (!source.equals(targetSub)) return;
+    private void ensureNotDescendant(SimplePath source, SimplePath target) {
+        // both are normalized, so this compares their names in place
+        if (!target.startsWith(source)) return;
         throw new UnsupportedOperationException(
             "cannot copy/move directory %s into a subdirectory of itself %s".formatted(
                 source,
@@ -548,16 +849,106 @@ public class JnmofsFileSystemNamespace
     }
 
     private Optional<JnmofsFileSystemObject> findFsObject(Path path) {
-        // var sp = toStorePath(path);
-        // System.out.println(
-        //     "JnmofsFileSystemNamespace.findFsObject(`%s`) (hashCode=%d) => %s".formatted(
-        //         sp,
-        //         sp.hashCode(),
-        //         index.get(sp)
-        //     )
-        // );
-        // dumpLs();
-        return Optional.ofNullable(index.get(toStorePath(path)));
+        return Optional.ofNullable(lookup(toStorePath(path)));
+    }
+
+    /**
+     * Walk down the tree from the root directory, following the names of
+     * {@code storePath}.
+     *
+     * @return the object at {@code storePath}, or {@code null} if there's none
+     */
+    private JnmofsFileSystemObject lookup(SimplePath storePath) {
+        // names are taken straight from the path string rather than through
+        // a Path for each of them
+        JnmofsFileSystemObject fsObject = rootDir;
+        for (int i = 0; i < storePath.getNameCount(); i++) {
+            if (!(fsObject instanceof JnmofsDirectory dir)) return null;
+            fsObject = dir.getMember(storePath.name(i));
+            if (fsObject == null) return null;
+        }
+        return fsObject;
+    }
+
+    /**
+     * Directory that {@code storePath} is (to be) a member of.
+     *
+     * @throws NoSuchFileException if the parent doesn't exist or isn't a
+     *         directory
+     */
+    private JnmofsDirectory getParentDir(SimplePath storePath)
+        throws NoSuchFileException {
+        SimplePath parent = storePath.getParent();
+        if (lookup(parent) instanceof JnmofsDirectory dir) return dir;
+        throw new NoSuchFileException(parent.toString());
+    }
+
+    /**
+     * Remove {@code fsObject} from {@code parentDir}; must be called with
+     * {@code parentDir} locked, and {@code fsObject} too if it's a directory.
+     *
+     * @throws DirectoryNotEmptyException if {@code fsObject} is a directory
+     *         that isn't empty
+     */
+    private static void unlink(
+        JnmofsDirectory parentDir,
+        String name,
+        JnmofsFileSystemObject fsObject,
+        Path path
+    ) throws DirectoryNotEmptyException {
+        if (fsObject instanceof JnmofsDirectory dir) {
+            if (!dir.isEmpty()) {
+                throw new DirectoryNotEmptyException(path.toString());
+            }
+            dir.markRemoved();
+        }
+        parentDir.removeMember(name, fsObject);
+        if (fsObject instanceof JnmofsRegularFile file) {
+            file.unlink();
+        }
+    }
+
+    /**
+     * Lock the given directories in the order of their IDs, skipping nulls
+     * and duplicates, see {@link JnmofsDirectory}.
+     *
+     * @return the directories that were locked, to pass to
+     *         {@link #unlockAll}
+     */
+    private static List<JnmofsDirectory> lockAll(JnmofsDirectory... dirs) {
+        List<JnmofsDirectory> locked = Stream.of(dirs)
+            .filter(Objects::nonNull)
+            .distinct()
+            .sorted(Comparator.comparingLong(JnmofsDirectory::id))
+            .toList();
+        locked.forEach(JnmofsDirectory::lock);
+        return locked;
+    }
+
+    private static void unlockAll(List<JnmofsDirectory> locked) {
+        locked.forEach(JnmofsDirectory::unlock);
+    }
+
+    private static JnmofsDirectory asDirectory(
+        JnmofsFileSystemObject fsObject
+    ) {
+        return fsObject instanceof JnmofsDirectory dir ? dir : null;
+    }
+
+    // Name the object at storePath has in its parent directory
+    private static String nameOf(SimplePath storePath) {
+        return storePath.getFileName().toString();
+    }
+
+    private void ensureNotRoot(SimplePath storePath)
+        throws FileSystemException {
+        if (storePath.getFileName() == null) {
+            throw new FileSystemException(
+                storePath.toString(),
+                null,
+                "Root directory can't be deleted or moved"
+            );
+        }
     }
 
     private boolean hasAnyOpt(
@@ -567,22 +958,30 @@ public class JnmofsFileSystemNamespace
         return Stream.of(options).anyMatch(o -> spec.contains(o));
     }
 
-    private Path toStorePath(Path path) {
-        Path nPath = path.normalize();
-        if (!nPath.isAbsolute()) {
-            nPath = rootPath.resolve(nPath);
-        }
-        System.out.println(
-            "JnmofsFileSystemNamespace.toStorePath(`%s`) => `%s`".formatted(
-                path,
-                nPath
-            )
-        );
+    private SimplePath toStorePath(Path path) {
+        long start = tracer.startNanos();
+        // all paths reaching a namespace are SimplePaths, see
+        // JnmofsFileSystem.getNamespace; the store path is cached on the path,
+        // so that it's only normalized once
+        SimplePath nPath = ((SimplePath) path).storePath();
+        tracer.record(TraceEvent.Op.RESOLVE, nPath, 0, start);
         return nPath;
     }
 
     public void dumpLs() {
         System.out.println("> ls -R %s".formatted(rootPath));
-        index.forEach((p, o) -> System.out.println(p.toString()));
+        dumpLs(rootPath, rootDir);
+    }
+
+    private void dumpLs(Path path, JnmofsFileSystemObject fsObject) {
+        System.out.println(path.toString());
+        if (fsObject instanceof JnmofsDirectory dir) {
+            for (String name : dir.getMembers()) {
+                JnmofsFileSystemObject member = dir.getMember(name);
+                if (member != null) {
+                    dumpLs(path.resolve(name), member);
+                }
+            }
+        }
     }
 }
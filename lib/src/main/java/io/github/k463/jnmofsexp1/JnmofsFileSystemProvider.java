@@ -134,15 +134,37 @@ public class JnmofsFileSystemProvider extends FileSystemProvider {
         getFileOps(path).delete(path);
     }
 
+    /**
+     * Copy a file or directory, see {@link JnmofsFileSystemNamespace#copy}.
+     * <p>
+     * Copies from another FileSystem into a jnmofs filesystem are supported
+     * too, see {@link CrossFileSystemCopy}. {@link java.nio.file.Files} never
+     * calls this for copies between different providers, in either direction,
+     * so use {@link JnmofsFiles} for those.
+     */
     @Override
     public void copy(Path source, Path target, CopyOption... options)
         throws IOException {
+        if (!(source.getFileSystem() instanceof JnmofsFileSystem)) {
+            CrossFileSystemCopy.copy(source, target, Set.of(options));
+            return;
+        }
         getFileOps(source).copy(source, target, options);
     }
 
+    /**
+     * Move a file or directory, see {@link JnmofsFileSystemNamespace#move}.
+     * <p>
+     * Moves from another FileSystem into a jnmofs filesystem are supported
+     * too, in the same way as for {@link #copy}.
+     */
     @Override
     public void move(Path source, Path target, CopyOption... options)
         throws IOException {
+        if (!(source.getFileSystem() instanceof JnmofsFileSystem)) {
+            CrossFileSystemCopy.move(source, target, Set.of(options));
+            return;
+        }
         getFileOps(source).move(source, target, options);
     }
 
@@ -173,6 +195,24 @@ public class JnmofsFileSystemProvider extends FileSystemProvider {
         getFileOps(path).checkAccess(path, modes);
     }
 
+    @Override
+    public boolean exists(Path path, LinkOption... options) {
+        try {
+            return getFileOps(path).exists(path, options);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributesIfExists(
+        Path path,
+        Class<A> type,
+        LinkOption... options
+    ) throws IOException {
+        return getFileOps(path).readAttributesIfExists(path, type, options);
+    }
+
     @Override
     public <V extends FileAttributeView> V getFileAttributeView(
         Path path,
@@ -214,9 +254,17 @@ public class JnmofsFileSystemProvider extends FileSystemProvider {
         getFileOps(path).setAttribute(path, attribute, value, options);
     }
 
+    void removeFileSystem(URI uri, JnmofsFileSystem fs) {
+        fileSystems.remove(getFsId(uri), fs);
+    }
+
     // Private implementation details
 
     private FileOperations getFileOps(Path path) throws IOException {
+        if (path.getFileSystem() instanceof JnmofsFileSystem jfs) {
+            // resolved once per path, see JnmofsFileSystem.getNamespace
+            return jfs.getNamespace(path);
+        }
         FileSystem fs = path.getFileSystem(); // NOPMD - bad rule
         FileStore fst = getFileStore(path);
         FileOperations ops;
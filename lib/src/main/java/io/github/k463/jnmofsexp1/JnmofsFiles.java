@@ -0,0 +1,95 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1;
+
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+
+/**
+ * Copies and moves of whole directory trees where either end, or both, is on
+ * a {@link JnmofsFileSystem}.
+ * <p>
+ * {@link Files#copy(Path, Path, CopyOption...)} and
+ * {@link Files#move(Path, Path, CopyOption...)} only hand copies and moves
+ * to the provider when both paths belong to it, and otherwise copy through
+ * streams, one file at a time, and can't move non-empty directories. These
+ * methods always go through the jnmofs provider instead, so trees are copied
+ * in parallel and file contents leave or enter jnmofs in large chunks, e.g.
+ * to persist results to, or load inputs from, the default filesystem.
+ */
+public final class JnmofsFiles {
+
+    private JnmofsFiles() {}
+
+    /**
+     * Copy a file, or a directory with everything below it, like
+     * {@link Files#copy(Path, Path, CopyOption...)} with
+     * {@link JnmofsCopyOption#RECURSIVE}.
+     *
+     * @throws ProviderMismatchException if neither path is on a jnmofs
+     *         filesystem
+     */
+    public static void copyTree(
+        Path source,
+        Path target,
+        CopyOption... options
+    ) throws IOException {
+        CopyOption[] recursive = Arrays.copyOf(options, options.length + 1);
+        recursive[options.length] = JnmofsCopyOption.RECURSIVE;
+        provider(source, target).copy(source, target, recursive);
+    }
+
+    /**
+     * Move a file, or a directory with everything below it, like
+     * {@link Files#move(Path, Path, CopyOption...)}. Moves between different
+     * filesystems copy the tree with its timestamps and then delete the
+     * source, so they aren't atomic.
+     *
+     * @throws ProviderMismatchException if neither path is on a jnmofs
+     *         filesystem
+     */
+    public static void moveTree(
+        Path source,
+        Path target,
+        CopyOption... options
+    ) throws IOException {
+        provider(source, target).move(source, target, options);
+    }
+
+    // The jnmofs provider handles copies out of jnmofs through the source,
+    // and copies into it through the target, see JnmofsFileSystemProvider
+    private static FileSystemProvider provider(Path source, Path target) {
+        if (source.getFileSystem() instanceof JnmofsFileSystem fs) {
+            return fs.provider();
+        }
+        if (target.getFileSystem() instanceof JnmofsFileSystem fs) {
+            return fs.provider();
+        }
+        throw new ProviderMismatchException(
+            "Neither %s nor %s is on a jnmofs filesystem".formatted(
+                source,
+                target
+            )
+        );
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1;
+
+import io.github.k463.jnmofsexp1.impl.JnmofsDirectory;
+import io.github.k463.jnmofsexp1.impl.JnmofsFileSystemObject;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A path resolved to the object found at it, so that repeated operations on
+ * the same file or directory don't have to resolve and look up the path each
+ * time, see {@link JnmofsFileSystem#getHandle(Path)}.
+ * <p>
+ * A handle becomes stale once its path no longer leads to the object it was
+ * resolved to, because the object or one of its parent directories was
+ * deleted or moved. Operations on a stale handle fail with
+ * {@link NoSuchFileException}, use {@link JnmofsFileSystem#getHandle(Path)}
+ * again to get a handle of whatever is at the path now. A handle becomes
+ * valid again if the object is moved back to its path.
+ * <p>
+ * Checking for staleness is cheap as long as nothing in the namespace was
+ * deleted or moved since the handle was last used, otherwise it takes a single
+ * lookup of the path.
+ */
+public final class JnmofsPathHandle {
+
+    private final JnmofsFileSystemNamespace namespace;
+    private final SimplePath path;
+    private final JnmofsFileSystemObject fsObject;
+    // Namespace structure version at which the path was last known to lead
+    // to fsObject; racing threads may store an older one, which at worst
+    // means checking the path again.
+    private volatile long version;
+
+    JnmofsPathHandle(
+        JnmofsFileSystemNamespace namespace,
+        SimplePath path,
+        JnmofsFileSystemObject fsObject,
+        long version
+    ) {
+        this.namespace = namespace;
+        this.path = path;
+        this.fsObject = fsObject;
+        this.version = version;
+    }
+
+    /**
+     * @return the absolute, normalized path this handle was resolved from
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * @return {@code true} if the path no longer leads to the object this
+     *         handle was resolved to
+     */
+    public boolean isStale() {
+        long current = namespace.validate(path, fsObject, version);
+        if (current < 0) return true;
+        version = current;
+        return false;
+    }
+
+    public BasicFileAttributes readAttributes() throws IOException {
+        return fsObject().getAttributes();
+    }
+
+    /**
+     * Open a channel to the file, like {@link FileChannel#open(Path,
+     * OpenOption...)} does for a file that exists.
+     */
+    public FileChannel newFileChannel(OpenOption... options)
+        throws IOException {
+        return namespace.openChannel(
+            path,
+            fsObject(),
+            Set.copyOf(Arrays.asList(options))
+        );
+    }
+
+    /**
+     * @return the names of the members of the directory
+     * @throws NotDirectoryException if the object isn't a directory
+     */
+    public List<String> list() throws IOException {
+        if (fsObject() instanceof JnmofsDirectory dir) {
+            return dir.getMembers();
+        }
+        throw new NotDirectoryException(path.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "JnmofsPathHandle(%s)".formatted(path);
+    }
+
+    private JnmofsFileSystemObject fsObject() throws NoSuchFileException {
+        if (!path.getFileSystem().isOpen()) {
+            throw new ClosedFileSystemException();
+        }
+        if (isStale()) {
+            throw new NoSuchFileException(
+                path.toString(),
+                null,
+                "Stale handle, the object was deleted or moved"
+            );
+        }
+        return fsObject;
+    }
+}
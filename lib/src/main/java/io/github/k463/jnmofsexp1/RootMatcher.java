@@ -0,0 +1,101 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Finds the longest of the configured roots that a path string starts with.
+ * <p>
+ * A root only matches if the string is either equal to it, or continues with
+ * the separator right after it, so that a root doesn't match a longer name it
+ * happens to be a prefix of, e.g. root {@code @v1} doesn't match
+ * {@code @v10/foo}.
+ * <p>
+ * Roots are kept in a trie of their characters. Walking the trie along the
+ * string passes every root the string starts with, from the shortest to the
+ * longest, so nested roots like {@code /vol} and {@code /vol/@v1} resolve to
+ * the most specific one in a single pass over the string, no matter how many
+ * roots are configured.
+ */
+final class RootMatcher {
+
+    private final String separator;
+    private final Node trie = new Node();
+
+    RootMatcher(Collection<String> roots, String separator) {
+        this.separator = separator;
+        for (String root : roots) {
+            Node node = trie;
+            for (int i = 0; i < root.length(); i++) {
+                node = node.getOrAddChild(root.charAt(i));
+            }
+            node.root = root;
+        }
+    }
+
+    /**
+     * @return the longest root {@code in} starts with, or {@code null} if
+     *         there's none
+     */
+    String match(String in) {
+        String res = null;
+        Node node = trie;
+        for (int i = 0; node != null; i++) {
+            if (
+                node.root != null &&
+                (i == in.length() || in.startsWith(separator, i))
+            ) {
+                res = node.root;
+            }
+            if (i == in.length()) break;
+            node = node.child(in.charAt(i));
+        }
+        return res;
+    }
+
+    private static final class Node {
+
+        // Roots rarely share more than a few characters at any position, so
+        // children are kept in small arrays that are searched linearly.
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // root ending at this node, if any
+        private String root;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node getOrAddChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
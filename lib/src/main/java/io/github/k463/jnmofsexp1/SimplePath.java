@@ -30,22 +30,26 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.Predicate;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.StringJoiner;
 
 /**
  * Represents a simple implementation of the {@link Path} interface.
  * <p>
  * This class splits the path on the separator returned by {@link FileSystem#getSeparator()}.
- * The path is immutable and is internally stored as both a string and a list of path components.
+ * The path is immutable and is internally stored as a single string, with the offsets of its
+ * components computed from it only when first needed.
  * <p>
- * The path is stored as-is except that if it ends with a path separator, the separator is stripped.
+ * The path is stored as-is except that empty components are dropped, i.e. leading, trailing and
+ * repeated separators are stripped, so that components are always separated by exactly one
+ * separator. That way most operations are simple substring operations on the stored string, and
+ * two paths with the same components have the same string.
  * <p>
  * Use the {@link #normalize()} method to return a new {@link Path} with all components normalized.
  * <p>
+ * The class is final, and the methods the filesystem itself calls on paths return SimplePath, so
+ * that those calls are bound to this class directly rather than dispatched through the
+ * {@link Path} interface, whose call sites are shared with every other Path implementation.
+ * <p>
  * Quirks of dealing with paths:
  * <p>
  * * "" = default/current directory of the filesystem
@@ -78,53 +82,54 @@ import java.util.stream.StreamSupport;
  *   * roots=["@v1", "/vol/@v2"], getPath("/foo/bar") => ERR invalid root ""
  *   * roots=["", "@v1"], getPath("@v1/foo").resolve("/foo") => root="", path="foo"
  */
-public class SimplePath implements Path {
+public final class SimplePath implements Path {
 
     private static final String CUR_DIR = ".";
     private static final String PARENT_DIR = "..";
+    private static final int[] NO_OFFSETS = new int[0];
 
     private final FileSystem fs;
-    private final List<String> components;
+    private final String separator;
+    // null for relative paths
+    private final String root;
+    // components separated by exactly one separator, see canonicalize
     private final String path;
-    private final Optional<String> root;
-    private final Pattern separatorRe;
+    // Derived from the above only when needed; racing threads at worst
+    // compute the same values more than once.
+    private volatile int[] offsets;
+    private volatile String string;
+    private volatile SimplePath storePath;
+    private volatile JnmofsFileSystemNamespace namespace;
+    private int hash;
+    // 0 = not checked yet, see isNormal
+    private byte normal;
 
     SimplePath(FileSystem fs, Optional<String> root, String in) {
-        Objects.requireNonNull(in);
+        this(fs, root.orElse(null), canonicalize(in, fs.getSeparator()));
+    }
+
+    // path has to be canonical already
+    private SimplePath(FileSystem fs, String root, String path) {
         this.fs = fs;
-        this.path = stripFinalSep(in);
+        this.separator = fs.getSeparator();
         this.root = root;
-        this.separatorRe = Pattern.compile(Pattern.quote(fs.getSeparator()));
-        this.components = separatorRe
-            .splitAsStream(path)
-            .filter(Predicate.not(String::isEmpty))
-            .collect(Collectors.toUnmodifiableList());
-        // System.out.println(
-        //     "SimplePath(%s, %s, %s)\n  path=%s\n  components=%s, .size=%d".formatted(
-        //         fs,
-        //         root,
-        //         in,
-        //         path,
-        //         components,
-        //         components.size()
-        //     )
-        // );
+        this.path = path;
     }
 
-    private SimplePath create(List<String> comps) {
-        return create(String.join(fs.getSeparator(), comps));
+    private SimplePath create(String canonicalPath) {
+        return new SimplePath(fs, root, canonicalPath);
     }
 
-    private SimplePath create(String in) {
-        return new SimplePath(fs, root, in);
+    private SimplePath createRel(String canonicalPath) {
+        return new SimplePath(fs, (String) null, canonicalPath);
     }
 
-    private SimplePath createRel(List<String> comps) {
-        return createRel(String.join(fs.getSeparator(), comps));
+    private SimplePath create(List<String> comps) {
+        return create(String.join(separator, comps));
     }
 
-    private SimplePath createRel(String in) {
-        return new SimplePath(fs, Optional.empty(), in);
+    private SimplePath createRel(List<String> comps) {
+        return createRel(String.join(separator, comps));
     }
 
     @Override
@@ -134,66 +139,89 @@ public class SimplePath implements Path {
 
     @Override
     public boolean isAbsolute() {
-        return root.isPresent();
+        return root != null;
     }
 
     @Override
-    public Path getRoot() {
-        return root.map(r -> new SimplePath(fs, root, "")).orElse(null);
+    public SimplePath getRoot() {
+        if (root == null) return null;
+        return path.isEmpty() ? this : create("");
     }
 
     @Override
-    public Path getFileName() {
-        if (components.isEmpty()) return null;
-        return createRel(components.get(components.size() - 1));
+    public SimplePath getFileName() {
+        int count = getNameCount();
+        if (count == 0) return null;
+        if (count == 1 && root == null) return this;
+        return createRel(path.substring(offsets()[count - 1]));
     }
 
     @Override
-    public Path getParent() {
-        if (components.isEmpty()) return null;
-        if (components.size() == 1 && !isAbsolute()) return null;
-        return create(components.subList(0, components.size() - 1));
+    public SimplePath getParent() {
+        int count = getNameCount();
+        if (count == 0) return null;
+        if (count == 1) return isAbsolute() ? getRoot() : null;
+        return create(path.substring(0, end(count - 2)));
     }
 
     @Override
     public int getNameCount() {
-        return components.size();
+        return offsets().length;
     }
 
     @Override
     public Path getName(int index) {
-        return createRel(components.get(index));
+        if (index < 0 || index >= getNameCount()) {
+            throw new IllegalArgumentException(
+                "Invalid index %d, should be within [0,%d)".formatted(
+                    index,
+                    getNameCount()
+                )
+            );
+        }
+        if (getNameCount() == 1 && root == null) return this;
+        return createRel(name(index));
     }
 
     @Override
     public Path subpath(int beginIndex, int endIndex) {
-        if (
-            beginIndex < 0 ||
-            endIndex > components.size() ||
-            beginIndex > endIndex
-        ) {
+        int count = getNameCount();
+        if (beginIndex < 0 || endIndex > count || beginIndex > endIndex) {
             throw new IllegalArgumentException(
                 "Invalid range [%d,%d], should be within [0,%d]".formatted(
                     beginIndex,
                     endIndex,
-                    components.size()
+                    count
                 )
             );
         }
-        return createRel(components.subList(beginIndex, endIndex));
+        if (beginIndex == endIndex) return createRel("");
+        return createRel(
+            path.substring(offsets()[beginIndex], end(endIndex - 1))
+        );
     }
 
     @Override
     public boolean startsWith(Path other) {
         Objects.requireNonNull(other);
-        if (!isSameFs(other)) return false;
-        if (!getRoot().equals(other.getRoot())) return false;
-        if (other.getNameCount() > getNameCount()) return false;
-        Path eqLenPath = subpath(0, other.getNameCount());
-        if (isAbsolute()) {
-            eqLenPath = eqLenPath.toAbsolutePath();
+        if (!(other instanceof SimplePath o) || !isSameFs(other)) {
+            return false;
         }
-        return eqLenPath.equals(other);
+        if (!Objects.equals(root, o.root)) return false;
+        int count = o.getNameCount();
+        if (count > getNameCount()) return false;
+        if (isNormal() && o.isNormal()) {
+            // compare the components in place
+            int len = o.path.length();
+            return (
+                path.startsWith(o.path) &&
+                (len == 0 ||
+                    len == path.length() ||
+                    path.startsWith(separator, len))
+            );
+        }
+        return create(count == 0 ? "" : path.substring(0, end(count - 1)))
+            .equals(other);
     }
 
     @Override
@@ -205,11 +233,13 @@ public class SimplePath implements Path {
     }
 
     @Override
-    public Path normalize() {
+    public SimplePath normalize() {
+        if (isNormal()) return this;
+
         List<String> normalized = new ArrayList<>();
-        for (String comp : components) {
+        for (int i = 0; i < getNameCount(); i++) {
+            String comp = name(i);
             switch (comp) {
-                case "":
                 case CUR_DIR:
                     if (normalized.isEmpty()) {
                         normalized.add(CUR_DIR);
@@ -246,23 +276,18 @@ public class SimplePath implements Path {
         } else if (other.getNameCount() == 0) {
             return this;
         }
+        String otherPath;
+        if (other instanceof SimplePath o && separator.equals(o.separator)) {
+            otherPath = o.path;
+        } else {
+            StringJoiner joiner = new StringJoiner(separator);
+            for (Path name : other) {
+                joiner.add(name.toString());
+            }
+            otherPath = joiner.toString();
+        }
         return create(
-            Stream.concat(
-                StreamSupport.stream(this.spliterator(), false),
-                StreamSupport.stream(other.spliterator(), false)
-            )
-                // .peek(e ->
-                //     System.out.println(
-                //         "Path(%s, %s).resolve(%s): e=%s".formatted(
-                //             root,
-                //             path,
-                //             other,
-                //             e
-                //         )
-                //     )
-                // )
-                .map(Path::toString)
-                .toList()
+            path.isEmpty() ? otherPath : path + separator + otherPath
         );
     }
 
@@ -297,32 +322,26 @@ public class SimplePath implements Path {
             return other;
         }
 
-        List<String> otherComponents = StreamSupport.stream(
-            other.spliterator(),
-            false
-        )
-            .map(Path::toString)
-            .collect(Collectors.toList());
-
+        SimplePath otherPath = (SimplePath) other;
+        int count = getNameCount();
+        int otherCount = otherPath.getNameCount();
         List<String> newComponents = new ArrayList<>();
         int i = 0;
 
-        while (i < components.size() && i < otherComponents.size()) {
-            String thisComp = components.get(i);
-            String otherComp = otherComponents.get(i);
-            if (thisComp.equals(otherComp)) {
+        while (i < count && i < otherCount) {
+            if (name(i).equals(otherPath.name(i))) {
                 i++;
             } else {
                 break;
             }
         }
 
-        for (int j = i; j < components.size(); j++) {
+        for (int j = i; j < count; j++) {
             newComponents.add(PARENT_DIR);
         }
 
-        for (int j = i; j < otherComponents.size(); j++) {
-            newComponents.add(otherComponents.get(j));
+        for (int j = i; j < otherCount; j++) {
+            newComponents.add(otherPath.name(j));
         }
 
         return createRel(newComponents);
@@ -389,36 +408,170 @@ public class SimplePath implements Path {
 
     @Override
     public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other instanceof SimplePath o && isSameFs(o)) {
+            SimplePath path1 = normalize();
+            SimplePath path2 = o.normalize();
+            return (
+                Objects.equals(path1.root, path2.root) &&
+                path1.path.equals(path2.path)
+            );
+        }
+        // throws for paths of other filesystems, like compareTo does
         return compareTo((Path) other) == 0;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(fs, root, components);
+        int h = hash;
+        if (h == 0) {
+            // equal paths are equal once normalized
+            SimplePath normalized = normalize();
+            h = fs.hashCode();
+            h = 31 * h + Objects.hashCode(normalized.root);
+            h = 31 * h + normalized.path.hashCode();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
     public String toString() {
-        // special case root="", components=[] => /
-        if (root.isPresent() && root.get().isEmpty() && components.isEmpty()) {
-            return fs.getSeparator();
+        String s = string;
+        if (s == null) {
+            if (root == null) {
+                s = path;
+            } else if (path.isEmpty()) {
+                // special case root="" => separator
+                s = root.isEmpty() ? separator : root;
+            } else {
+                s = root + separator + path;
+            }
+            string = s;
         }
-        return Stream.concat(root.stream(), components.stream()).collect(
-            Collectors.joining(fs.getSeparator())
-        );
+        return s;
     }
 
     // Helper methods
 
+    /**
+     * This path made absolute and normalized, which is what the filesystem
+     * looks objects up by. It's computed only once, as the same path is often
+     * used for several operations in a row, e.g. checking whether a file
+     * exists, then reading its size, then opening it.
+     */
+    SimplePath storePath() {
+        SimplePath res = storePath;
+        if (res == null) {
+            res = normalize();
+            if (!res.isAbsolute()) {
+                res = (SimplePath) res.toAbsolutePath();
+            }
+            res.storePath = res;
+            storePath = res;
+        }
+        return res;
+    }
+
+    /**
+     * Namespace this path was bound to by
+     * {@link JnmofsFileSystem#getNamespace}, if any.
+     */
+    JnmofsFileSystemNamespace namespace() {
+        return namespace;
+    }
+
+    void bindNamespace(JnmofsFileSystemNamespace namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * The name at {@code index}, like {@code getName(index).toString()}
+     * without creating the intermediate path.
+     */
+    String name(int index) {
+        return path.substring(offsets()[index], end(index));
+    }
+
     private boolean isSameFs(Path other) {
         return getFileSystem().equals(other.getFileSystem());
     }
 
-    private String stripFinalSep(String in) {
-        int sepLen = fs.getSeparator().length();
-        if (in.length() > sepLen && in.endsWith(fs.getSeparator())) {
-            return in.substring(0, in.length() - sepLen);
+    // Offsets of the first character of each name in path
+    private int[] offsets() {
+        int[] res = offsets;
+        if (res == null) {
+            if (path.isEmpty()) {
+                res = NO_OFFSETS;
+            } else {
+                int count = 1;
+                int i = path.indexOf(separator);
+                for (; i >= 0; i = path.indexOf(separator, i + 1)) {
+                    count++;
+                }
+                res = new int[count];
+                for (int n = 1; n < count; n++) {
+                    i = path.indexOf(separator, res[n - 1]);
+                    res[n] = i + separator.length();
+                }
+            }
+            offsets = res;
+        }
+        return res;
+    }
+
+    // Offset just past the name at index
+    private int end(int index) {
+        int[] offsets = offsets();
+        return index + 1 < offsets.length
+            ? offsets[index + 1] - separator.length()
+            : path.length();
+    }
+
+    // Whether normalize would return the same path, which is the case when
+    // none of the names are "." or ".."
+    private boolean isNormal() {
+        if (normal == 0) {
+            boolean res = true;
+            for (int i = 0; i < getNameCount() && res; i++) {
+                int len = end(i) - offsets()[i];
+                if (len <= 2 && path.charAt(offsets()[i]) == '.') {
+                    res = len == 2 && path.charAt(offsets()[i] + 1) != '.';
+                }
+            }
+            normal = (byte) (res ? 1 : 2);
+        }
+        return normal == 1;
+    }
+
+    // Drop empty names, i.e. leading, trailing and repeated separators, so
+    // that names are always separated by exactly one separator. Most paths
+    // don't have any of those, in which case the string is used as is.
+    private static String canonicalize(String in, String separator) {
+        Objects.requireNonNull(in);
+        if (!hasEmptyNames(in, separator)) return in;
+
+        StringBuilder sb = new StringBuilder(in.length());
+        int start = 0;
+        while (start < in.length()) {
+            int end = in.indexOf(separator, start);
+            if (end < 0) end = in.length();
+            if (end > start) {
+                if (!sb.isEmpty()) sb.append(separator);
+                sb.append(in, start, end);
+            }
+            start = end + separator.length();
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasEmptyNames(String in, String separator) {
+        if (in.isEmpty()) return false;
+        if (in.startsWith(separator) || in.endsWith(separator)) return true;
+        int i = in.indexOf(separator);
+        for (; i >= 0; i = in.indexOf(separator, i + separator.length())) {
+            if (in.startsWith(separator, i + separator.length())) return true;
         }
-        return in;
+        return false;
     }
 }
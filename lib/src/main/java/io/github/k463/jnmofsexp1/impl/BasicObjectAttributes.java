@@ -22,7 +22,7 @@ import java.nio.file.attribute.FileTime;
 
 public class BasicObjectAttributes implements BasicFileAttributes {
 
-    private final FileTime epochTime = FileTime.fromMillis(0);
+    private static final FileTime epochTime = FileTime.fromMillis(0);
     private final JnmofsFileSystemObject fso;
 
     public BasicObjectAttributes(JnmofsFileSystemObject fso) {
@@ -0,0 +1,131 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content-addressed store of the pages of all files in a namespace, used to
+ * store pages with identical contents only once.
+ * <p>
+ * Files hand their pages to the store once they're done writing them, see
+ * {@link PagedContents#dedup(ChunkStore)}, and get back either the same page
+ * or an identical one that's already stored, which they then share with
+ * other files the same way as pages shared by {@linkplain PagedContents#copy()
+ * copies}: writing to a stored page duplicates it first, and the last file to
+ * let go of it hands it back to the allocator.
+ * <p>
+ * Pages are looked up by a hash of their contents, and only shared once their
+ * contents are found to be equal, so a hash collision only means that one of
+ * the two pages isn't deduplicated. The store doesn't hold a reference of its
+ * own, pages are removed from it as soon as no file refers to them anymore.
+ */
+public final class ChunkStore {
+
+    private final ConcurrentHashMap<Long, Chunk> chunks =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Number of distinct pages currently stored.
+     */
+    public int size() {
+        return chunks.size();
+    }
+
+    /**
+     * Find a stored page with the same contents as {@code page}, or store
+     * {@code page} if there's none, and take a reference to it for the
+     * caller.
+     *
+     * @return the stored page, or {@code null} if a different page with the
+     *         same hash is stored
+     */
+    Chunk intern(ByteBuffer page) {
+        long hash = hash(page);
+        while (true) {
+            Chunk chunk = chunks.get(hash);
+            if (chunk == null) {
+                chunk = new Chunk(this, hash, page);
+                if (chunks.putIfAbsent(hash, chunk) == null) return chunk;
+                continue;
+            }
+            // a stored page is only written to after its last reference is
+            // claimed, which makes acquire fail, so if it's acquired after
+            // comparing equal, it was equal
+            if (chunk.page.mismatch(page) == -1 && chunk.acquire()) {
+                return chunk;
+            }
+            if (chunk.get() != 0) return null;
+            // let go of by its last file, but not removed yet
+            chunks.remove(hash, chunk);
+        }
+    }
+
+    private static long hash(ByteBuffer page) {
+        long h = 0;
+        for (int i = 0; i < page.capacity(); i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ page.getLong(i), 29) * 0x9E3779B97F4A7C15L;
+        }
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * A stored page, along with the number of files referring to it, which
+     * is kept in the page tables of those files like any other shared page
+     * reference count.
+     * <p>
+     * Once the count drops to 0 the page is no longer stored, and the count
+     * can't be increased again.
+     */
+    static final class Chunk extends AtomicInteger {
+
+        private final ChunkStore store;
+        private final long hash;
+        private final ByteBuffer page;
+
+        private Chunk(ChunkStore store, long hash, ByteBuffer page) {
+            super(1);
+            this.store = store;
+            this.hash = hash;
+            this.page = page;
+        }
+
+        ByteBuffer page() {
+            return page;
+        }
+
+        /**
+         * Remove the page from the store, called by the file that dropped the
+         * count to 0, before it either releases or writes to the page.
+         */
+        void forget() {
+            store.chunks.remove(hash, this);
+        }
+
+        private boolean acquire() {
+            int refs;
+            do {
+                refs = get();
+                if (refs == 0) return false;
+            } while (!compareAndSet(refs, refs + 1));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allocates pages in off-heap memory so that file contents don't add to the
+ * Java heap and aren't scanned or copied by the garbage collector.
+ * <p>
+ * Memory is allocated from a shared {@link Arena} in slabs of several pages,
+ * which are then handed out one page at a time. Released pages are zeroed and
+ * kept on a free list for reuse by later allocations, and all slabs are freed
+ * at once when the allocator is closed rather than whenever the garbage
+ * collector gets to them. Deleting files thus makes room for the contents of
+ * other files, but doesn't give any memory back before then.
+ */
+final class DirectPageAllocator implements PageAllocator {
+
+    private static final int PAGES_PER_SLAB = 64;
+    private static final long MAX_DIRECT_MEMORY = maxDirectMemory();
+
+    private final int pageSize;
+    private final Arena arena = Arena.ofShared();
+    private final Deque<ByteBuffer> freePages = new ConcurrentLinkedDeque<>();
+    private final Object slabLock = new Object();
+    // pages handed out and not released yet, i.e. not counting free pages
+    private final LongAdder allocatedPages = new LongAdder();
+    private volatile boolean closed = false;
+
+    DirectPageAllocator(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public ByteBuffer allocate() {
+        ByteBuffer page = freePages.pollFirst();
+        if (page == null) {
+            page = allocateSlab();
+        }
+        allocatedPages.increment();
+        return page;
+    }
+
+    // Allocate a new slab, put all of its pages but the returned one on the
+    // free list
+    private ByteBuffer allocateSlab() {
+        synchronized (slabLock) {
+            if (closed) throw new ClosedFileSystemException();
+            // another thread might have allocated a new slab in the meantime
+            ByteBuffer page = freePages.pollFirst();
+            if (page != null) return page;
+
+            // memory allocated by the arena is already zero-filled
+            MemorySegment slab = arena.allocate(
+                (long) pageSize * PAGES_PER_SLAB,
+                pageSize
+            );
+            for (int i = 1; i < PAGES_PER_SLAB; i++) {
+                freePages.addLast(
+                    slab.asSlice((long) i * pageSize, pageSize).asByteBuffer()
+                );
+            }
+            return slab.asSlice(0, pageSize).asByteBuffer();
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer page) {
+        if (closed) return;
+        allocatedPages.decrement();
+        try {
+            MemorySegment.ofBuffer(page).fill((byte) 0);
+        } catch (IllegalStateException e) {
+            // allocator was closed concurrently, the memory is already freed
+            return;
+        }
+        // push to the front so that recently used pages are reused first
+        freePages.addFirst(page);
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return allocatedPages.sum() * pageSize;
+    }
+
+    @Override
+    public long capacity() {
+        return MAX_DIRECT_MEMORY;
+    }
+
+    // Memory allocated by an Arena counts towards the same limit as direct
+    // buffers, which is as much as the JVM may use for its heap unless set
+    // with -XX:MaxDirectMemorySize
+    private static long maxDirectMemory() {
+        long heap = Runtime.getRuntime().maxMemory();
+        try {
+            HotSpotDiagnosticMXBean diagnostics =
+                ManagementFactory.getPlatformMXBean(
+                    HotSpotDiagnosticMXBean.class
+                );
+            if (diagnostics == null) return heap;
+            long max = Long.parseLong(
+                diagnostics.getVMOption("MaxDirectMemorySize").getValue()
+            );
+            return max > 0 ? max : heap;
+        } catch (IllegalArgumentException e) {
+            // not a HotSpot JVM, assume the same default
+            return heap;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (slabLock) {
+            if (closed) return;
+            closed = true;
+            freePages.clear();
+            // Bulk copies between buffers keep the arena from being closed
+            // while they're under way, which lock-free readers may still be
+            // doing; they're short, and fail once it's closed, so try again.
+            while (true) {
+                try {
+                    arena.close();
+                    return;
+                } catch (IllegalStateException e) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+}
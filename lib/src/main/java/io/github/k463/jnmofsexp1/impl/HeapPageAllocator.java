@@ -0,0 +1,67 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allocates pages on the Java heap, released pages are simply left to the
+ * garbage collector.
+ */
+final class HeapPageAllocator implements PageAllocator {
+
+    private final int pageSize;
+    private final LongAdder allocatedPages = new LongAdder();
+
+    HeapPageAllocator(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public ByteBuffer allocate() {
+        allocatedPages.increment();
+        return ByteBuffer.allocate(pageSize);
+    }
+
+    @Override
+    public void release(ByteBuffer page) {
+        // nothing else to do, the page is garbage collected once unreferenced
+        allocatedPages.decrement();
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return allocatedPages.sum() * pageSize;
+    }
+
+    @Override
+    public long capacity() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public void close() {
+        // nothing to do, see release
+    }
+}
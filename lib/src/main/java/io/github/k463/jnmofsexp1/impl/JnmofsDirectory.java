@@ -17,41 +17,229 @@
  */
 package io.github.k463.jnmofsexp1.impl;
 
-import java.nio.file.Path;
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A directory node in the namespace tree, mapping the names of its members to
+ * the member objects themselves, so that paths are resolved by walking down
+ * the tree from the root directory, and an object of any kind (including a
+ * directory with all of its descendants) is renamed or moved by relinking
+ * just that one entry.
+ * <p>
+ * Members are kept in a hash map keyed by plain name strings, so adding,
+ * removing and looking up a member takes O(1) regardless of the size of the
+ * directory. Lookups don't take any locks, while changes are serialized by a
+ * per-directory lock so that {@link #getMembers()} can take a consistent
+ * snapshot of the member names. The snapshot is kept until the directory
+ * changes again, so listing a directory that isn't being modified doesn't
+ * copy anything.
+ * <p>
+ * Names are interned when a member is added, so that the many files sharing
+ * a name across directories (like {@code index.html} or {@code part-00000})
+ * share a single copy of it. Interned strings are still garbage collected
+ * once no directory refers to them anymore.
+ * <p>
+ * The same lock is available through {@link #lock()} to namespace operations
+ * that have to check and change one or more directories atomically. Those
+ * must lock directories in the order of their {@link #id()}s, so that
+ * operations locking several directories can't deadlock.
+ */
 public class JnmofsDirectory extends JnmofsFileSystemObject {
 
-    private final Set<Path> members = new CopyOnWriteArraySet<>();
+    // Maximum number of members of a directory copied by a single task, see
+    // copyTree
+    private static final int COPY_BATCH = 256;
+
+    private final Map<String, JnmofsFileSystemObject> members =
+        new ConcurrentHashMap<>();
+    private final ReentrantLock membersLock = new ReentrantLock();
+    // null whenever members changed since the last snapshot was taken
+    private volatile List<String> membersSnapshot = List.of();
+    // guarded by membersLock
+    private boolean removed = false;
 
     public JnmofsDirectory() {
         super(JnmofsObjectType.DIRECTORY);
     }
 
-    @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
-    public boolean addMember(Path member) {
-        if (member.getNameCount() != 1) {
-            throw new IllegalArgumentException(
-                "Directory member must be a single name component, got: %s".formatted(
-                    member
-                )
-            );
+    public void lock() {
+        membersLock.lock();
+    }
+
+    public void unlock() {
+        membersLock.unlock();
+    }
+
+    /**
+     * Add a member under the given name, unless there already is a member
+     * with that name, or this directory was removed.
+     *
+     * @return {@code true} if the member was added
+     */
+    public boolean addMember(String name, JnmofsFileSystemObject member) {
+        membersLock.lock();
+        try {
+            if (removed || members.putIfAbsent(name.intern(), member) != null) {
+                return false;
+            }
+            membersSnapshot = null;
+            return true;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    /**
+     * Member with the given name, or {@code null} if there's none.
+     */
+    public JnmofsFileSystemObject getMember(String name) {
+        return members.get(name);
+    }
+
+    /**
+     * Names of all members at the time of the call, unaffected by any later
+     * changes to the directory.
+     */
+    public List<String> getMembers() {
+        List<String> snapshot = membersSnapshot;
+        if (snapshot != null) return snapshot;
+
+        membersLock.lock();
+        try {
+            if (membersSnapshot == null) {
+                membersSnapshot = List.copyOf(members.keySet());
+            }
+            return membersSnapshot;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Mark this directory as removed from the namespace, so that no members
+     * can be added to it anymore; must be called with the lock held, after
+     * checking the directory is empty.
+     */
+    public void markRemoved() {
+        removed = true;
+    }
+
+    /**
+     * Remove the member with the given name, if it's still {@code member}.
+     *
+     * @return {@code true} if the member was removed
+     */
+    public boolean removeMember(String name, JnmofsFileSystemObject member) {
+        membersLock.lock();
+        try {
+            if (!members.remove(name, member)) return false;
+            membersSnapshot = null;
+            return true;
+        } finally {
+            membersLock.unlock();
         }
-        return members.add(member);
     }
 
-    public Set<Path> getMembers() {
-        return Collections.unmodifiableSet(members);
+    /**
+     * Create a copy of this directory and everything below it, not linked
+     * into any directory yet. Regular files are copied with
+     * {@link JnmofsRegularFile#copy()}, so no file contents are copied.
+     * <p>
+     * Subdirectories, and batches of members of large directories, are
+     * copied by separate fork/join tasks, so trees are copied in parallel.
+     * Each directory is created before its members are copied into it.
+     * Members added or removed while the tree is being copied may or may not
+     * be part of the copy.
+     */
+    public JnmofsDirectory copyTree() {
+        JnmofsDirectory copy = new JnmofsDirectory();
+        new CopyTask(this, copy).invoke();
+        return copy;
     }
 
-    public boolean removeMember(Path member) {
-        return members.remove(member);
+    /**
+     * Hand the contents of all files below this directory back, after it was
+     * created by {@link #copyTree()} but couldn't be linked into the tree.
+     */
+    public void discardTree() {
+        for (JnmofsFileSystemObject member : members.values()) {
+            if (member instanceof JnmofsRegularFile file) {
+                file.unlink();
+            } else if (member instanceof JnmofsDirectory dir) {
+                dir.discardTree();
+            }
+        }
     }
 
     @Override
     public long size() {
         return 0;
     }
+
+    // Copies the members named names[from, to) of source into target
+    private static final class CopyTask extends RecursiveAction {
+
+        private final JnmofsDirectory source;
+        private final JnmofsDirectory target;
+        private final List<String> names;
+        private final int from;
+        private final int to;
+
+        CopyTask(JnmofsDirectory source, JnmofsDirectory target) {
+            this(source, target, source.getMembers(), 0, -1);
+        }
+
+        private CopyTask(
+            JnmofsDirectory source,
+            JnmofsDirectory target,
+            List<String> names,
+            int from,
+            int to
+        ) {
+            this.source = source;
+            this.target = target;
+            this.names = names;
+            this.from = from;
+            this.to = to < 0 ? names.size() : to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > COPY_BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                    new CopyTask(source, target, names, from, mid),
+                    new CopyTask(source, target, names, mid, to)
+                );
+                return;
+            }
+
+            List<CopyTask> subdirs = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                String name = names.get(i);
+                JnmofsFileSystemObject member = source.getMember(name);
+                if (member instanceof JnmofsRegularFile file) {
+                    JnmofsRegularFile copy = file.copy();
+                    // null if deleted since the names were listed
+                    if (copy != null) {
+                        target.addMember(name, copy);
+                    }
+                } else if (member instanceof JnmofsDirectory dir) {
+                    JnmofsDirectory copy = new JnmofsDirectory();
+                    target.addMember(name, copy);
+                    subdirs.add(new CopyTask(dir, copy));
+                }
+            }
+            invokeAll(subdirs);
+        }
+    }
 }
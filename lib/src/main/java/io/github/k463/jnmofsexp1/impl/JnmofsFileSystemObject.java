@@ -33,16 +33,16 @@ public abstract class JnmofsFileSystemObject {
     private final long objId;
 
     protected final JnmofsObjectType type;
-    private final BasicObjectAttributes attributes;
 
     protected JnmofsFileSystemObject(JnmofsObjectType type) {
         this.objId = objIdSource.incrementAndGet();
         this.type = type;
-        this.attributes = new BasicObjectAttributes(this);
     }
 
     public BasicFileAttributes getAttributes() {
-        return attributes;
+        // attributes are a view of this object rather than a copy, so there's
+        // no need to keep one around for every object
+        return new BasicObjectAttributes(this);
     }
 
     public JnmofsObjectType getType() {
@@ -17,46 +17,228 @@
  */
 package io.github.k463.jnmofsexp1.impl;
 
+import io.github.k463.jnmofsexp1.trace.TraceEvent.Op;
+import io.github.k463.jnmofsexp1.trace.Tracer;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.OpenOption;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileAttribute;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class JnmofsRegularFile extends JnmofsFileSystemObject {
 
-    private ByteBuffer contents = ByteBuffer.allocate(0);
-    private final Object fileLock = new Object();
+    // Maximum number of pages handed to the other channel at once by the
+    // transferTo/transferFrom fast paths
+    private static final int TRANSFER_PAGES = 64;
 
-    public JnmofsRegularFile() {
+    private final PagedContents contents;
+    private final Tracer tracer;
+    // Whether a channel read from or wrote to the file since the last time
+    // compressIfCold looked at it; only ever set when it isn't set yet, so
+    // that channels of a busy file don't keep writing to the same field
+    private volatile boolean accessed = true;
+    // Whether compressIfCold already compressed the file since it was last
+    // accessed, so that contents that don't compress aren't tried again;
+    // only used by compressIfCold
+    private boolean cold = false;
+    // Whether that left out pages because other files shared them, which they
+    // might no longer do by the next call; only used by compressIfCold
+    private boolean sharedPagesLeft = false;
+    // Guards contents: reads share the lock (or just validate an optimistic
+    // stamp), anything that modifies contents takes it exclusively. Unlike a
+    // monitor, a StampedLock never pins a virtual thread to its carrier.
+    private final StampedLock fileLock = new StampedLock();
+    // Most files are never locked, so this is only created once a channel
+    // locks part of the file, see rangeLocks(); written with fileLock held
+    private volatile RangeLockManager rangeLocks;
+    // guarded by fileLock
+    private int openChannels = 0;
+    private boolean unlinked = false;
+
+    /**
+     * @param compressor compressor for the contents when they aren't used,
+     *                   see {@link #compressIfCold()}, or {@code null} to
+     *                   never compress them
+     */
+    public JnmofsRegularFile(
+        PageAllocator allocator,
+        PageCompressor compressor,
+        Tracer tracer
+    ) {
+        this(new PagedContents(allocator, compressor), tracer);
+    }
+
+    private JnmofsRegularFile(PagedContents contents, Tracer tracer) {
         super(JnmofsObjectType.FILE);
+        this.contents = contents;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Create a new file with the same contents as this one. No bytes are
+     * copied, the two files share their pages until either of them writes to
+     * one, see {@link PagedContents#copy()}.
+     *
+     * @return the new file, not linked into any directory yet, or
+     *         {@code null} if this file was unlinked
+     */
+    public JnmofsRegularFile copy() {
+        // copying inflates the contents, see PagedContents.copy()
+        touch();
+        long stamp = fileLock.writeLock();
+        try {
+            if (unlinked) return null;
+            return new JnmofsRegularFile(contents.copy(), tracer);
+        } finally {
+            fileLock.unlockWrite(stamp);
+        }
     }
 
+    /**
+     * Open a channel to this file.
+     *
+     * @param path       path the file is being opened through, only used to
+     *                   identify the channel's operations in traces
+     * @param chunkStore store of the namespace the file is being opened
+     *                   through, that the contents are shared with other
+     *                   files with the same contents through once the channel
+     *                   is closed, see {@link PagedContents#dedup(ChunkStore)},
+     *                   or {@code null} to not deduplicate them
+     * @param channels   open channels of the FileSystem, the channel is added
+     *                   to them until it's closed, so that the FileSystem can
+     *                   close them before freeing the contents of its files
+     */
     public FileChannel openChannel(
+        Path path,
+        ChunkStore chunkStore,
+        Set<FileChannel> channels,
         Set<? extends OpenOption> options,
         FileAttribute<?>... attrs
     ) throws IOException {
-        return new InternalFileChannel(options, attrs);
+        long start = tracer.startNanos();
+        FileChannel channel = new InternalFileChannel(
+            path,
+            chunkStore,
+            channels,
+            options,
+            attrs
+        );
+        touch();
+        long stamp = fileLock.writeLock();
+        try {
+            openChannels++;
+        } finally {
+            fileLock.unlockWrite(stamp);
+        }
+        channels.add(channel);
+        tracer.record(Op.OPEN, path, 0, start);
+        return channel;
+    }
+
+    /**
+     * Mark this file as removed from the namespace. Its contents are released
+     * right away if there are no open channels, otherwise when the last open
+     * channel is closed, so that channels opened before the file was deleted
+     * keep working until closed.
+     */
+    public void unlink() {
+        long stamp = fileLock.writeLock();
+        try {
+            unlinked = true;
+            if (openChannels == 0) {
+                contents.release();
+            }
+        } finally {
+            fileLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Compress the contents if no channel used the file since the last call,
+     * see {@link PagedContents#compress()}, or inflate them back if the file
+     * was used since they were compressed, so that a file that's in use again
+     * doesn't inflate its pages on every read. Meant to be called
+     * periodically for all files, the interval being how long a file has to
+     * go unused for its contents to be compressed.
+     * <p>
+     * Must not be called concurrently for the same file.
+     */
+    public void compressIfCold() {
+        if (accessed) {
+            accessed = false;
+            if (cold) {
+                cold = false;
+                long stamp = fileLock.writeLock();
+                try {
+                    contents.decompress();
+                } finally {
+                    fileLock.unlockWrite(stamp);
+                }
+            }
+            return;
+        }
+        if (cold && !sharedPagesLeft) return;
+        cold = true;
+        long stamp = fileLock.writeLock();
+        try {
+            sharedPagesLeft = !unlinked && !contents.compress();
+        } finally {
+            fileLock.unlockWrite(stamp);
+        }
+    }
+
+    private void touch() {
+        if (!accessed) {
+            accessed = true;
+        }
+    }
+
+    private RangeLockManager rangeLocks() {
+        RangeLockManager locks = rangeLocks;
+        if (locks != null) return locks;
+        long stamp = fileLock.writeLock();
+        try {
+            if (rangeLocks == null) {
+                rangeLocks = new RangeLockManager();
+            }
+            return rangeLocks;
+        } finally {
+            fileLock.unlockWrite(stamp);
+        }
     }
 
     @Override
     public long size() {
-        return contents.capacity();
+        long stamp = fileLock.tryOptimisticRead();
+        long size = contents.size();
+        if (fileLock.validate(stamp)) {
+            return size;
+        }
+        stamp = fileLock.readLock();
+        try {
+            return contents.size();
+        } finally {
+            fileLock.unlockRead(stamp);
+        }
     }
 
     // Implement the FileChannel as internal class so that RegularFile doesn't
@@ -64,73 +246,238 @@ public class JnmofsRegularFile extends JnmofsFileSystemObject {
     private final class InternalFileChannel extends FileChannel {
 
         private volatile boolean open = true;
+        private final Path path;
+        // Store that the contents are deduplicated against when the channel
+        // is closed, that of the namespace it was opened through rather than
+        // one kept by the file, so that files don't have to be told about
+        // moves into other namespaces; null if disabled
+        private final ChunkStore chunkStore;
+        private final Set<FileChannel> channels;
         private final Set<? extends OpenOption> openOptions;
-        private int channelPosition = 0;
+        // Serializes operations that use or update the channel position, as
+        // required by the FileChannel spec; absolute reads and writes don't
+        // take it, so they're only ordered by fileLock.
+        private final ReentrantLock positionLock = new ReentrantLock();
+        private volatile long channelPosition = 0;
 
         InternalFileChannel(
+            Path path,
+            ChunkStore chunkStore,
+            Set<FileChannel> channels,
             Set<? extends OpenOption> options,
             FileAttribute<?>... attrs // NOPMD - for future use
         ) throws IOException {
+            this.path = path;
+            this.chunkStore = chunkStore;
+            this.channels = channels;
             this.openOptions = options;
 
-            if (options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            // like FileChannel.open, ignore TRUNCATE_EXISTING unless the
+            // channel is opened for writing
+            if (
+                options.contains(StandardOpenOption.TRUNCATE_EXISTING) &&
+                isWritable()
+            ) {
                 truncate(0);
             }
         }
 
         @Override
         public int read(ByteBuffer dst) throws IOException {
-            return read(new ByteBuffer[] { dst }, 0, 1, 0, false);
+            ensureReadable();
+            Objects.requireNonNull(dst);
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                inflateForRead(channelPosition, dst.remaining());
+                int bytesRead;
+                boolean completed = false;
+                long stamp = readLock();
+                try {
+                    bytesRead = readContents(dst, channelPosition);
+                    completed = true;
+                } finally {
+                    unlockRead(stamp, completed);
+                }
+                if (bytesRead > 0) {
+                    channelPosition += bytesRead;
+                }
+                tracer.record(Op.READ, path, bytesRead, start);
+                return bytesRead;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public long read(ByteBuffer[] dsts, int offset, int length)
             throws IOException {
-            return read(dsts, offset, length, 0, false);
+            ensureReadable();
+            checkBuffers(dsts, offset, length);
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                inflateForRead(
+                    channelPosition,
+                    remaining(dsts, offset, length)
+                );
+                long bytesRead;
+                boolean completed = false;
+                long stamp = readLock();
+                try {
+                    bytesRead = readContents(
+                        dsts,
+                        offset,
+                        length,
+                        channelPosition
+                    );
+                    completed = true;
+                } finally {
+                    unlockRead(stamp, completed);
+                }
+                if (bytesRead > 0) {
+                    channelPosition += bytesRead;
+                }
+                tracer.record(Op.READ, path, bytesRead, start);
+                return bytesRead;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public int write(ByteBuffer src) throws IOException {
-            return write(new ByteBuffer[] { src }, 0, 1, 0, false);
+            ensureWritable();
+            Objects.requireNonNull(src);
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                int bytesWritten;
+                boolean completed = false;
+                if (isAppend()) {
+                    long stamp = readLock();
+                    try {
+                        bytesWritten = appendContents(src);
+                        completed = true;
+                    } finally {
+                        unlockRead(stamp, completed);
+                    }
+                } else {
+                    long stamp = writeLock();
+                    try {
+                        bytesWritten = contents.write(channelPosition, src);
+                        channelPosition += bytesWritten;
+                        completed = true;
+                    } finally {
+                        unlockWrite(stamp, completed);
+                    }
+                }
+                tracer.record(Op.WRITE, path, bytesWritten, start);
+                return bytesWritten;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public long write(ByteBuffer[] srcs, int offset, int length)
             throws IOException {
-            return write(srcs, offset, length, 0, false);
+            ensureWritable();
+            checkBuffers(srcs, offset, length);
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                long bytesWritten;
+                boolean completed = false;
+                if (isAppend()) {
+                    long stamp = readLock();
+                    try {
+                        bytesWritten = appendContents(srcs, offset, length);
+                        completed = true;
+                    } finally {
+                        unlockRead(stamp, completed);
+                    }
+                } else {
+                    long stamp = writeLock();
+                    try {
+                        bytesWritten = writeContents(
+                            srcs,
+                            offset,
+                            length,
+                            channelPosition
+                        );
+                        channelPosition += bytesWritten;
+                        completed = true;
+                    } finally {
+                        unlockWrite(stamp, completed);
+                    }
+                }
+                tracer.record(Op.WRITE, path, bytesWritten, start);
+                return bytesWritten;
+            } finally {
+                positionLock.unlock();
+            }
         }
 
         @Override
         public long position() throws IOException {
             ensureOpen();
-            return withIoLock(() -> channelPosition);
+            return channelPosition;
         }
 
         @Override
         public FileChannel position(long newPosition) throws IOException {
             ensureOpen();
-            if (newPosition < 0) {
-                throw new IllegalArgumentException(
-                    "position must be > 0, got: %d".formatted(newPosition)
-                );
+            checkPosition(newPosition);
+            positionLock.lock();
+            try {
+                channelPosition = newPosition;
+            } finally {
+                positionLock.unlock();
             }
-            withIoLock(() -> channelPosition = (int) newPosition);
             return this;
         }
 
         @Override
         public long size() throws IOException {
             ensureOpen();
-            return withIoLock(() -> JnmofsRegularFile.this.size());
+            return JnmofsRegularFile.this.size();
         }
 
         @Override
         public FileChannel truncate(long size) throws IOException {
             ensureWritable();
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'truncate'"
-            );
+            if (size < 0) {
+                throw new IllegalArgumentException(
+                    "size must be >= 0, got: %d".formatted(size)
+                );
+            }
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                long bytesTruncated;
+                boolean completed = false;
+                long stamp = writeLock();
+                try {
+                    bytesTruncated = Math.max(0, contents.size() - size);
+                    contents.truncate(size);
+                    completed = true;
+                } finally {
+                    unlockWrite(stamp, completed);
+                }
+                if (channelPosition > size) {
+                    channelPosition = size;
+                }
+                tracer.record(Op.TRUNCATE, path, bytesTruncated, start);
+            } finally {
+                positionLock.unlock();
+            }
+            return this;
         }
 
         @Override
@@ -146,10 +493,55 @@ public class JnmofsRegularFile extends JnmofsFileSystemObject {
             WritableByteChannel target
         ) throws IOException {
             ensureReadable();
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'transferTo'"
-            );
+            Objects.requireNonNull(target);
+            checkPosition(position);
+            checkCount(count);
+
+            if (target instanceof InternalFileChannel channel) {
+                return transferToFile(position, count, channel);
+            }
+
+            long start = tracer.startNanos();
+            ByteBuffer[] slices = new ByteBuffer[TRANSFER_PAGES];
+            long bytesTransferred = 0;
+
+            // Hand the target views of the pages themselves, a batch of pages
+            // at a time, and only hold the read lock for one batch so that
+            // writers aren't blocked for the whole transfer by a slow target.
+            while (bytesTransferred < count) {
+                long written;
+                boolean shortWrite;
+                boolean completed = false;
+                inflateForRead(
+                    position + bytesTransferred,
+                    Math.min(
+                        count - bytesTransferred,
+                        (long) TRANSFER_PAGES * PagedContents.PAGE_SIZE
+                    )
+                );
+                long stamp = readLock();
+                try {
+                    int n = contents.slices(
+                        position + bytesTransferred,
+                        count - bytesTransferred,
+                        slices
+                    );
+                    if (n == 0) {
+                        completed = true;
+                        break;
+                    }
+                    written = writeSlices(target, slices, n);
+                    shortWrite = slices[n - 1].hasRemaining();
+                    completed = true;
+                } finally {
+                    unlockRead(stamp, completed);
+                }
+                bytesTransferred += written;
+                if (shortWrite) break;
+            }
+
+            tracer.record(Op.READ, path, bytesTransferred, start);
+            return bytesTransferred;
         }
 
         @Override
@@ -159,274 +551,793 @@ public class JnmofsRegularFile extends JnmofsFileSystemObject {
             long count
         ) throws IOException {
             ensureWritable();
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'transferFrom'"
-            );
+            Objects.requireNonNull(src);
+            checkPosition(position);
+            checkCount(count);
+
+            if (src instanceof InternalFileChannel channel) {
+                return channel.transferToFile(count, this, position);
+            }
+
+            long start = tracer.startNanos();
+            long bytesTransferred = 0;
+
+            // Let the source read into a page that isn't part of the file yet,
+            // one page at a time, and only take the write lock to put it in
+            // place, so that a source that blocks doesn't hold up everyone
+            // else using the file.
+            while (bytesTransferred < count) {
+                if (position > JnmofsRegularFile.this.size()) break;
+                long pagePosition = position + bytesTransferred;
+                int offset = PagedContents.pageOffset(pagePosition);
+                int length = (int) Math.min(
+                    PagedContents.PAGE_SIZE - offset,
+                    count - bytesTransferred
+                );
+                ByteBuffer page = contents.stagingPage();
+                int bytesRead = 0;
+                boolean completed = false;
+                begin();
+                try {
+                    bytesRead = src.read(page.slice(offset, length));
+                    if (bytesRead > 0) {
+                        long stamp = fileLock.writeLock();
+                        try {
+                            if (!open) throw new AsynchronousCloseException();
+                            contents.publishPage(pagePosition, page, bytesRead);
+                        } finally {
+                            fileLock.unlockWrite(stamp);
+                        }
+                    }
+                    completed = true;
+                } finally {
+                    if (bytesRead <= 0) {
+                        contents.discardPage(page);
+                    }
+                    end(completed);
+                }
+                if (bytesRead <= 0) break;
+                bytesTransferred += bytesRead;
+            }
+
+            tracer.record(Op.WRITE, path, bytesTransferred, start);
+            return bytesTransferred;
         }
 
         @Override
         public int read(ByteBuffer dst, long position) throws IOException {
-            return read(new ByteBuffer[] { dst }, 0, 1, position, true);
+            ensureReadable();
+            Objects.requireNonNull(dst);
+            checkPosition(position);
+            long start = tracer.startNanos();
+
+            // Try reading without taking the lock first, so that concurrent
+            // positional reads of the same file don't have to contend on it;
+            // if a writer got in the way, undo and retry with the read lock.
+            inflateForRead(position, dst.remaining());
+            long stamp = fileLock.tryOptimisticRead();
+            if (stamp != 0) {
+                int dstPosition = dst.position();
+                try {
+                    int bytesRead = readContents(dst, position);
+                    if (fileLock.validate(stamp)) {
+                        tracer.record(Op.READ, path, bytesRead, start);
+                        return bytesRead;
+                    }
+                } catch (IllegalStateException e) {
+                    // the contents were freed under the read as the
+                    // FileSystem was closed, the locked read below finds
+                    // the channel closed
+                }
+                dst.position(dstPosition);
+            }
+
+            int bytesRead;
+            boolean completed = false;
+            stamp = readLock();
+            try {
+                bytesRead = readContents(dst, position);
+                completed = true;
+            } finally {
+                unlockRead(stamp, completed);
+            }
+            tracer.record(Op.READ, path, bytesRead, start);
+            return bytesRead;
         }
 
         @Override
         public int write(ByteBuffer src, long position) throws IOException {
-            return write(new ByteBuffer[] { src }, 0, 1, position, true);
+            ensureWritable();
+            Objects.requireNonNull(src);
+            checkPosition(position);
+            long start = tracer.startNanos();
+
+            int bytesWritten;
+            boolean completed = false;
+            long stamp = writeLock();
+            try {
+                bytesWritten = contents.write(position, src);
+                completed = true;
+            } finally {
+                unlockWrite(stamp, completed);
+            }
+            tracer.record(Op.WRITE, path, bytesWritten, start);
+            return bytesWritten;
         }
 
+        /**
+         * Map a region of the file into memory.
+         * <p>
+         * {@link MapMode#READ_ONLY READ_ONLY} and
+         * {@link MapMode#READ_WRITE READ_WRITE} mappings are views of the
+         * file's stored bytes, the mapped range is moved to memory shared by
+         * all mappings of the file the first time it's mapped (see
+         * {@link PagedContents#map}) and from then on writes through the
+         * channel and through any mapping of the range, including ones made
+         * before the file grew and was mapped again, are immediately visible
+         * to each other.
+         * <p>
+         * {@link MapMode#PRIVATE PRIVATE} mappings are copies of the range
+         * taken when the mapping is created, changes made through the mapping
+         * never reach the file, and later changes to the file aren't visible
+         * through the mapping.
+         * <p>
+         * Like with the default filesystem, a channel open for writing grows
+         * the file to the end of the mapped range, while mapping past the end
+         * of the file through a read-only channel fails.
+         */
         @Override
         public MappedByteBuffer map(MapMode mode, long position, long size)
             throws IOException {
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'map'"
-            );
+            Objects.requireNonNull(mode);
+            ensureReadable();
+            if (mode != MapMode.READ_ONLY) {
+                if (mode != MapMode.READ_WRITE && mode != MapMode.PRIVATE) {
+                    throw new UnsupportedOperationException(
+                        "Unsupported map mode: %s".formatted(mode)
+                    );
+                }
+                ensureWritable();
+            }
+            checkPosition(position);
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(
+                    "size must be >= 0 and <= Integer.MAX_VALUE, got: %d".formatted(
+                        size
+                    )
+                );
+            }
+            if (position + size < 0) {
+                throw new IllegalArgumentException(
+                    "position + size overflows"
+                );
+            }
+
+            MemorySegment memory;
+            boolean completed = false;
+            long stamp = writeLock();
+            try {
+                long end = position + size;
+                if (end > contents.size() && !isWritable()) {
+                    throw new IOException(
+                        "Channel not open for writing, can't grow file to %d".formatted(
+                            end
+                        )
+                    );
+                }
+                if (mode == MapMode.PRIVATE) {
+                    memory = Arena.ofAuto().allocate(size);
+                    contents.read(position, memory.asByteBuffer());
+                } else {
+                    memory = contents.map(position, size);
+                }
+                contents.grow(end);
+                completed = true;
+            } finally {
+                unlockWrite(stamp, completed);
+            }
+
+            if (mode == MapMode.READ_ONLY) {
+                memory = memory.asReadOnly();
+            }
+            // buffers over native memory are always MappedByteBuffers, just
+            // not ones backed by a file descriptor, so force() and load() are
+            // no-ops on them, and isLoaded() is always true
+            return (MappedByteBuffer) memory.asByteBuffer();
         }
 
+        /**
+         * Acquire a lock on a region of the file, waiting for conflicting
+         * locks held through other channels to be released, see
+         * {@link RangeLockManager}.
+         */
         @Override
         public FileLock lock(long position, long size, boolean shared)
             throws IOException {
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'lock'"
-            );
+            checkLockable(position, size, shared);
+
+            FileLock lock = null;
+            boolean completed = false;
+            begin();
+            try {
+                lock = rangeLocks().lock(this, position, size, shared);
+                completed = lock != null;
+            } catch (InterruptedException e) {
+                // the interrupt also closed the channel, which end reports
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    end(completed);
+                } catch (ClosedByInterruptException e) {
+                    throw new FileLockInterruptionException();
+                }
+            }
+            return lock;
         }
 
         @Override
         public FileLock tryLock(long position, long size, boolean shared)
             throws IOException {
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException(
-                "Unimplemented method 'tryLock'"
-            );
+            checkLockable(position, size, shared);
+            return rangeLocks().tryLock(this, position, size, shared);
         }
 
         @Override
         protected void implCloseChannel() throws IOException {
+            long start = tracer.startNanos();
             open = false;
+            // a lock manager created after this doesn't hold any locks of
+            // this channel, as it's no longer open
+            RangeLockManager locks = rangeLocks;
+            if (locks != null) {
+                locks.releaseAll(this);
+            }
+            long stamp = fileLock.writeLock();
+            try {
+                if (--openChannels == 0 && unlinked) {
+                    contents.release();
+                } else if (
+                    chunkStore != null && !unlinked && isWritable()
+                ) {
+                    contents.dedup(chunkStore);
+                }
+            } finally {
+                fileLock.unlockWrite(stamp);
+            }
+            channels.remove(this);
+            tracer.record(Op.CLOSE, path, 0, start);
         }
 
         // Helper methods
 
-        // this should only be used in context with a file lock held
-        private void ensureCapacity(int newCap) {
-            if (contents.capacity() > newCap) return;
-            ByteBuffer newContents = ByteBuffer.allocate(newCap);
-            if (contents.capacity() > 0) {
-                contents.position(0);
-                contents.limit(contents.capacity());
-                newContents.put(contents);
-            }
-            contents = newContents;
-        }
-
         private void ensureOpen() throws IOException {
             if (!open) throw new ClosedChannelException();
         }
 
         private void ensureReadable() throws IOException {
             ensureOpen();
-            if (!openOptions.contains(StandardOpenOption.READ)) {
+            // like FileChannel.open, channels opened without any of READ,
+            // WRITE or APPEND are opened for reading (e.g. Files.readAllBytes)
+            if (
+                !openOptions.contains(StandardOpenOption.READ) &&
+                (openOptions.contains(StandardOpenOption.WRITE) ||
+                    openOptions.contains(StandardOpenOption.APPEND))
+            ) {
                 throw new NonReadableChannelException();
             }
+            touch();
         }
 
         private void ensureWritable() throws IOException {
             ensureOpen();
-            if (!openOptions.contains(StandardOpenOption.WRITE)) {
+            if (!isWritable()) {
                 throw new NonWritableChannelException();
             }
+            touch();
+        }
+
+        private void checkLockable(long position, long size, boolean shared)
+            throws IOException {
+            if (shared) {
+                ensureReadable();
+            } else {
+                ensureWritable();
+            }
+            checkPosition(position);
+            if (size < 0) {
+                throw new IllegalArgumentException(
+                    "size must be >= 0, got: %d".formatted(size)
+                );
+            }
+        }
+
+        // like FileChannel.open, APPEND opens the channel for writing too
+        private boolean isWritable() {
+            return (
+                openOptions.contains(StandardOpenOption.WRITE) ||
+                openOptions.contains(StandardOpenOption.APPEND)
+            );
+        }
+
+        // The I/O paths below are written out by hand rather than sharing code
+        // through wrapper arrays or lambdas, so that reads and writes don't
+        // allocate anything once the pages they touch exist.
+
+        private long readLock() throws AsynchronousCloseException {
+            // begin() has to be called before taking fileLock because if the
+            // thread is already interrupted it closes the channel right away,
+            // which in turn needs the write lock
+            begin();
+            long stamp = fileLock.readLock();
+            if (!open) {
+                fileLock.unlockRead(stamp);
+                closedWhileWaiting();
+            }
+            return stamp;
+        }
+
+        private void unlockRead(long stamp, boolean completed)
+            throws AsynchronousCloseException {
+            fileLock.unlockRead(stamp);
+            end(completed);
+        }
+
+        private long writeLock() throws AsynchronousCloseException {
+            begin();
+            long stamp = fileLock.writeLock();
+            if (!open) {
+                fileLock.unlockWrite(stamp);
+                closedWhileWaiting();
+            }
+            return stamp;
+        }
+
+        // The channel may have been closed while waiting for fileLock, e.g.
+        // along with the FileSystem, which frees the contents once all of its
+        // channels are closed, so they mustn't be touched after that.
+        private void closedWhileWaiting() throws AsynchronousCloseException {
+            // throws ClosedByInterruptException instead if that's why the
+            // channel was closed
+            end(false);
+            throw new AsynchronousCloseException();
+        }
+
+        // Inflate the compressed pages of a range about to be read back into
+        // the file, so that only the first read of a compressed page inflates
+        // it; nothing is inflated if the channel was closed meanwhile, the
+        // read that follows fails then.
+        private void inflateForRead(long position, long length) {
+            if (!contents.hasCompressedPages(position, length)) return;
+            long stamp = fileLock.writeLock();
+            try {
+                if (open) {
+                    contents.decompress(position, length);
+                }
+            } finally {
+                fileLock.unlockWrite(stamp);
+            }
+        }
+
+        private void unlockWrite(long stamp, boolean completed)
+            throws AsynchronousCloseException {
+            fileLock.unlockWrite(stamp);
+            end(completed);
+        }
+
+        /**
+         * Read a sequence of bytes from the file into the given buffer.
+         * <p>
+         * Must be called with fileLock held, or with an optimistic stamp that
+         * is validated afterwards.
+         *
+         * @param   dst
+         *          buffer into which the bytes are to be transferred
+         * @param   position
+         *          file position at which to begin reading bytes
+         * @return  number of bytes read, possibly 0, or -1 if the position is
+         *          at or past the end of the file
+         */
+        private int readContents(ByteBuffer dst, long position) {
+            if (position >= contents.size()) {
+                return -1;
+            }
+            return contents.read(position, dst);
         }
 
         /**
-         * Read a sequence of bytes from this channel into a subsequence of the
+         * Read a sequence of bytes from the file into a subsequence of the
          * given buffers.
+         * <p>
+         * Must be called with fileLock held.
          *
          * @param   dsts
          *          buffers into which the bytes are to be transferred
          * @param   offset
          *          offset within the {@code dsts} array of the first buffer
-         *          into which bytes are to be transferred, must be positive
-         *          and not larger than {@code dsts.length}
+         *          into which bytes are to be transferred
          * @param   length
          *          maximum number of buffers from {@code dsts} array to access
-         *          must be positive and not larger than {@code dsts.length - offset}
          * @param   position
-         *          file position at which to begin reading bytes, must be
-         *          positive, only used if {@code absolute == true}
-         * @param   absolute
-         *          if true this is an absolute read at the position specified
-         *          in {@code position} argument, without updating the channel's
-         *          current position; if false this is a relative read at the
-         *          channel's current position as reported by {@link #position()}
-         *          which is then updated after the read
-         * @return  number of bytes read, possibly 0, or -1 if the channel has
-         *          reached end-of-stream
+         *          file position at which to begin reading bytes
+         * @return  number of bytes read, possibly 0, or -1 if the position is
+         *          at or past the end of the file
          */
-        private int read(
+        private long readContents(
             ByteBuffer[] dsts,
             int offset,
             int length,
-            long position,
-            boolean absolute
-        ) throws IOException {
-            ensureReadable();
-            Objects.checkFromIndexSize(offset, offset + length, dsts.length);
-            List<ByteBuffer> dstBuffers = Arrays.asList(dsts).subList(
-                offset,
-                offset + length
-            );
-            dstBuffers.forEach(Objects::requireNonNull);
-
-            return withIoLock(() -> {
-                int reqPosition = absolute ? (int) position : channelPosition;
-
-                if (reqPosition >= contents.capacity()) {
-                    return -1;
-                }
-
-                int bytesRead = 0;
-
-                for (ByteBuffer dst : dstBuffers) {
-                    final int bytesAvailable = Math.min(
-                        dst.remaining(),
-                        contents.capacity() - reqPosition
-                    );
-
-                    if (bytesAvailable == 0) continue;
-
-                    contents.position(reqPosition);
-                    contents.limit(reqPosition + bytesAvailable);
-                    dst.put(contents);
-
-                    bytesRead += bytesAvailable;
-                    reqPosition += bytesAvailable;
-                    if (!absolute) {
-                        channelPosition += bytesAvailable;
-                    }
-                }
-
-                return bytesRead;
-            });
-        }
-
-        private <T> T withIoLock(Supplier<T> func)
-            throws AsynchronousCloseException {
-            boolean completed = false;
-            T res;
-            synchronized (fileLock) {
-                try {
-                    begin();
-                    res = func.get();
-                    completed = true;
-                } finally {
-                    end(completed);
-                }
+            long position
+        ) {
+            if (position >= contents.size()) {
+                return -1;
             }
-            return res;
+            long bytesRead = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytesRead += contents.read(position + bytesRead, dsts[i]);
+            }
+            return bytesRead;
         }
 
         /**
-         * Write a sequence of bytes to this channel from a subsequence of
+         * Write a sequence of bytes to the file from a subsequence of the
          * given buffers.
+         * <p>
+         * Must be called with fileLock held exclusively.
          *
          * @param   srcs
          *          buffers from which to retrieve the bytes to write
          * @param   offset
          *          offset within the {@code srcs} array of the first buffer
-         *          from which bytes are to be retrieved, must be positive and
-         *          not larger than {@code srcs.length}
+         *          from which bytes are to be retrieved
          * @param   length
          *          maximum number of buffers from {@code srcs} array to access
-         *          must be positive and not larger than {@code srcs.length - offset}
          * @param   position
-         *          file position at which to begin writing bytes, must be
-         *          positive, only used if {@code absolute == true}
-         * @param   absolute
-         *          if true this is an absolute write at the position specified
-         *          in {@code position} argument, without updating the channel's
-         *          current position; if false this is a relative write at the
-         *          channel's current position as reported by {@link #position()}
-         *          which is then updated after the write
+         *          file position at which to begin writing bytes
          * @return  number of bytes written
-         * @throws IOException
          */
-        private int write(
+        private long writeContents(
             ByteBuffer[] srcs,
             int offset,
             int length,
+            long position
+        ) {
+            long bytesWritten = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytesWritten += contents.write(
+                    position + bytesWritten,
+                    srcs[i]
+                );
+            }
+            return bytesWritten;
+        }
+
+        /**
+         * Transfer bytes of this channel's file, starting at {@code position},
+         * to {@code target} at its current position, see
+         * {@link #transferToFile(long, InternalFileChannel, long)}.
+         */
+        private long transferToFile(
             long position,
-            boolean absolute
+            long count,
+            InternalFileChannel target
         ) throws IOException {
-            ensureWritable();
-            Objects.checkFromIndexSize(offset, offset + length, srcs.length);
-            List<ByteBuffer> srcBuffers = Arrays.asList(srcs).subList(
-                offset,
-                offset + length
-            );
-            srcBuffers.forEach(Objects::requireNonNull);
+            target.ensureWritable();
+            long start = tracer.startNanos();
 
-            return withIoLock(() -> {
-                int reqPosition = absolute ? (int) position : channelPosition;
+            target.positionLock.lock();
+            try {
+                long bytesTransferred;
+                boolean completed = false;
+                begin();
+                try {
+                    bytesTransferred = target.copyFrom(
+                        this,
+                        position,
+                        count,
+                        -1
+                    );
+                    completed = true;
+                } finally {
+                    end(completed);
+                }
+                tracer.record(Op.READ, path, bytesTransferred, start);
+                target.tracer().record(
+                    Op.WRITE,
+                    target.path,
+                    bytesTransferred,
+                    start
+                );
+                return bytesTransferred;
+            } finally {
+                target.positionLock.unlock();
+            }
+        }
 
-                if (
-                    !absolute && openOptions.contains(StandardOpenOption.APPEND)
-                ) {
-                    channelPosition = reqPosition = contents.capacity();
+        /**
+         * Transfer bytes of this channel's file, starting at its current
+         * position, to {@code target} at {@code targetPosition}, straight
+         * between the two files' pages.
+         */
+        private long transferToFile(
+            long count,
+            InternalFileChannel target,
+            long targetPosition
+        ) throws IOException {
+            ensureReadable();
+            long start = tracer.startNanos();
+
+            positionLock.lock();
+            try {
+                long bytesTransferred;
+                boolean completed = false;
+                target.begin();
+                try {
+                    bytesTransferred = target.copyFrom(
+                        this,
+                        channelPosition,
+                        count,
+                        targetPosition
+                    );
+                    completed = true;
+                } finally {
+                    target.end(completed);
+                }
+                channelPosition += bytesTransferred;
+                tracer.record(Op.READ, path, bytesTransferred, start);
+                target.tracer().record(
+                    Op.WRITE,
+                    target.path,
+                    bytesTransferred,
+                    start
+                );
+                return bytesTransferred;
+            } finally {
+                positionLock.unlock();
+            }
+        }
+
+        /**
+         * Copy up to {@code count} bytes of the file of {@code sourceChannel},
+         * starting at {@code sourcePosition}, into this channel's file.
+         * <p>
+         * A negative {@code position} means a relative write at this channel's
+         * position, which is then advanced, in which case the caller must hold
+         * positionLock. Otherwise nothing is copied if {@code position} is past
+         * the end of the file, as required by transferFrom.
+         * <p>
+         * Both files are locked in the order of their IDs, so that transfers in
+         * opposite directions between the same two files can't deadlock.
+         *
+         * @return number of bytes copied
+         */
+        private long copyFrom(
+            InternalFileChannel sourceChannel,
+            long sourcePosition,
+            long count,
+            long position
+        ) throws AsynchronousCloseException {
+            JnmofsRegularFile source = sourceChannel.file();
+            JnmofsRegularFile file = JnmofsRegularFile.this;
+            if (source == file) {
+                return copyWithin(sourcePosition, count, position);
+            }
+
+            sourceChannel.inflateForRead(sourcePosition, count);
+            StampedLock sourceLock = source.fileLock;
+            long sourceStamp;
+            long stamp;
+            if (source.id() < file.id()) {
+                sourceStamp = sourceLock.readLock();
+                stamp = fileLock.writeLock();
+            } else {
+                stamp = fileLock.writeLock();
+                sourceStamp = sourceLock.readLock();
+            }
+            try {
+                // as in writeLock(), this channel being open while its file is
+                // locked keeps the FileSystem from freeing either file
+                if (!open) throw new AsynchronousCloseException();
+                long writePosition = position < 0
+                    ? nextWritePosition()
+                    : position;
+                if (writePosition > contents.size()) {
+                    return 0;
                 }
+                long bytesCopied = source.contents.copyTo(
+                    sourcePosition,
+                    count,
+                    contents,
+                    writePosition
+                );
+                if (position < 0) {
+                    channelPosition = writePosition + bytesCopied;
+                }
+                return bytesCopied;
+            } finally {
+                fileLock.unlockWrite(stamp);
+                sourceLock.unlockRead(sourceStamp);
+            }
+        }
 
-                // ensure capacity
-                final int bytesRemaining = srcBuffers
-                    .stream()
-                    .collect(Collectors.summingInt(ByteBuffer::remaining));
-                ensureCapacity(reqPosition + bytesRemaining);
-
-                // write
-                contents.position(reqPosition);
-                // srcBuffers.forEach(contents::put);
-                srcBuffers.forEach(src -> {
-                    dumpPreviewBufRead(src, true);
-                    contents.put(src);
-                });
-                int bytesWritten = contents.position() - reqPosition;
-                dumpPreviewBufRead(contents, false);
-
-                if (!absolute) {
-                    channelPosition += bytesWritten;
+        // Transfer within the same file, the source and target ranges might
+        // overlap so this goes through an intermediate buffer, at most
+        // TRANSFER_PAGES pages at a time. Like memmove, a target that starts
+        // after the source is copied back to front, so that no source bytes
+        // are overwritten before they're copied.
+        private long copyWithin(
+            long sourcePosition,
+            long count,
+            long position
+        ) throws AsynchronousCloseException {
+            long stamp = fileLock.writeLock();
+            try {
+                if (!open) throw new AsynchronousCloseException();
+                long writePosition = position < 0
+                    ? nextWritePosition()
+                    : position;
+                long size = contents.size();
+                if (writePosition > size) {
+                    return 0;
+                }
+                long bytesToCopy = Math.min(
+                    count,
+                    Math.max(0, size - sourcePosition)
+                );
+                ByteBuffer buffer = ByteBuffer.allocate(
+                    (int) Math.min(
+                        bytesToCopy,
+                        (long) TRANSFER_PAGES * PagedContents.PAGE_SIZE
+                    )
+                );
+                boolean backwards = writePosition > sourcePosition;
+                long bytesCopied = 0;
+                while (bytesCopied < bytesToCopy) {
+                    int length = (int) Math.min(
+                        buffer.capacity(),
+                        bytesToCopy - bytesCopied
+                    );
+                    long offset = backwards
+                        ? bytesToCopy - bytesCopied - length
+                        : bytesCopied;
+                    buffer.clear().limit(length);
+                    contents.read(sourcePosition + offset, buffer);
+                    contents.write(writePosition + offset, buffer.flip());
+                    bytesCopied += length;
+                }
+                if (position < 0) {
+                    channelPosition = writePosition + bytesCopied;
                 }
+                return bytesCopied;
+            } finally {
+                fileLock.unlockWrite(stamp);
+            }
+        }
 
-                return bytesWritten;
-            });
-        }
-
-        private void dumpPreviewBufRead(ByteBuffer buf, boolean fromCurrent) {
-            int origPosition = buf.position();
-            int origLimit = buf.limit();
-            int fromPosition = fromCurrent ? origPosition : 0;
-            final byte[] bytes = new byte[buf.capacity() - fromPosition];
-            System.out.println(
-                "InternalFileChannel[file.id=%d].dumpPreviewBufRead: buf=%s, origPosition=%d, fromPosition=%d, bytes.length=%d".formatted(
-                    id(),
-                    buf.toString(),
-                    origPosition,
-                    fromPosition,
-                    bytes.length
-                )
-            );
-            buf.position(fromPosition);
-            buf.limit(buf.capacity());
-            buf.get(bytes);
-            buf.position(origPosition);
-            buf.limit(origLimit);
-            final String s = new String(bytes);
-            System.out.println(
-                "InternalFileChannel[file.id=%d].dumpPreviewBufRead: buf=%s, read=`%s`".formatted(
-                    id(),
-                    buf.toString(),
-                    s
-                )
-            );
+        private Tracer tracer() {
+            return tracer;
+        }
+
+        private JnmofsRegularFile file() {
+            return JnmofsRegularFile.this;
+        }
+
+        /**
+         * Append the remaining bytes of {@code src} to the end of the file, and
+         * move the channel position past them.
+         * <p>
+         * Must be called with fileLock held shared, and positionLock held.
+         * Appends only reserve their range of the file exclusively, so appends
+         * through different channels copy their bytes in parallel; each range
+         * only becomes visible to readers once it, and all ranges before it,
+         * have been copied, so readers never see partial appends.
+         *
+         * @return number of bytes written
+         */
+        private int appendContents(ByteBuffer src) {
+            int bytesWritten = src.remaining();
+            long writePosition = contents.reserve(bytesWritten);
+            try {
+                contents.writeReserved(writePosition, src);
+            } finally {
+                contents.commit(writePosition, writePosition + bytesWritten);
+            }
+            channelPosition = writePosition + bytesWritten;
+            return bytesWritten;
+        }
+
+        /**
+         * Append the remaining bytes of a subsequence of the given buffers to
+         * the end of the file, see {@link #appendContents(ByteBuffer)}.
+         *
+         * @return number of bytes written
+         */
+        private long appendContents(
+            ByteBuffer[] srcs,
+            int offset,
+            int length
+        ) {
+            long bytesWritten = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytesWritten += srcs[i].remaining();
+            }
+            long writePosition = contents.reserve(bytesWritten);
+            try {
+                long position = writePosition;
+                for (int i = offset; i < offset + length; i++) {
+                    position += contents.writeReserved(position, srcs[i]);
+                }
+            } finally {
+                contents.commit(writePosition, writePosition + bytesWritten);
+            }
+            channelPosition = writePosition + bytesWritten;
+            return bytesWritten;
+        }
+
+        // Position of the next relative write, must be called with fileLock
+        // held exclusively.
+        private long nextWritePosition() {
+            return isAppend() ? contents.size() : channelPosition;
+        }
+
+        private boolean isAppend() {
+            return openOptions.contains(StandardOpenOption.APPEND);
+        }
+
+        private static void checkBuffers(
+            ByteBuffer[] buffers,
+            int offset,
+            int length
+        ) {
+            Objects.checkFromIndexSize(offset, length, buffers.length);
+            for (int i = offset; i < offset + length; i++) {
+                Objects.requireNonNull(buffers[i]);
+            }
+        }
+
+        private static long remaining(
+            ByteBuffer[] buffers,
+            int offset,
+            int length
+        ) {
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += buffers[i].remaining();
+            }
+            return remaining;
+        }
+
+        // Write the first n slices to target, stopping at the first short
+        // write; gathering channels get them all in a single call.
+        private static long writeSlices(
+            WritableByteChannel target,
+            ByteBuffer[] slices,
+            int n
+        ) throws IOException {
+            if (target instanceof GatheringByteChannel channel) {
+                return channel.write(slices, 0, n);
+            }
+            long bytesWritten = 0;
+            for (int i = 0; i < n; i++) {
+                bytesWritten += target.write(slices[i]);
+                if (slices[i].hasRemaining()) break;
+            }
+            return bytesWritten;
+        }
+
+        private static void checkCount(long count) {
+            if (count < 0) {
+                throw new IllegalArgumentException(
+                    "count must be >= 0, got: %d".formatted(count)
+                );
+            }
+        }
+
+        private static void checkPosition(long position) {
+            if (position < 0) {
+                throw new IllegalArgumentException(
+                    "position must be >= 0, got: %d".formatted(position)
+                );
+            }
         }
     }
 }
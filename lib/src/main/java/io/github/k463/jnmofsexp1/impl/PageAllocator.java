@@ -0,0 +1,94 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the fixed-size pages that regular file contents are stored in.
+ * <p>
+ * A single allocator is shared by all files of a FileSystem, pages are handed
+ * back to it when a file no longer needs them (e.g. the file was deleted), and
+ * all memory owned by the allocator is released when it's closed.
+ * <p>
+ * Implementations must be safe for use by multiple concurrent threads.
+ */
+public interface PageAllocator extends Closeable {
+    /**
+     * Name of the storage mode that keeps file contents on the Java heap.
+     */
+    String HEAP = "heap";
+
+    /**
+     * Name of the storage mode that keeps file contents in off-heap memory.
+     */
+    String DIRECT = "direct";
+
+    /**
+     * Allocate a new zero-filled page of {@link #pageSize()} bytes.
+     */
+    ByteBuffer allocate();
+
+    /**
+     * Return a page previously obtained from {@link #allocate()}, the page must
+     * not be accessed by the caller afterwards.
+     */
+    void release(ByteBuffer page);
+
+    int pageSize();
+
+    /**
+     * Total size of the pages that are currently allocated, i.e. not
+     * released yet.
+     */
+    long allocatedBytes();
+
+    /**
+     * Most memory that pages can be allocated from, including the pages that
+     * are currently allocated.
+     */
+    long capacity();
+
+    /**
+     * Release all memory owned by this allocator, any pages that were handed
+     * out and not released yet become inaccessible.
+     */
+    @Override
+    void close();
+
+    /**
+     * Create an allocator for the given storage mode, either {@link #HEAP} or
+     * {@link #DIRECT}.
+     *
+     * @throws IllegalArgumentException if the storage mode is unknown
+     */
+    static PageAllocator forStorage(String storage) {
+        return switch (storage) {
+            case HEAP -> new HeapPageAllocator(PagedContents.PAGE_SIZE);
+            case DIRECT -> new DirectPageAllocator(PagedContents.PAGE_SIZE);
+            default -> throw new IllegalArgumentException(
+                "Unknown storage mode `%s`, should be one of %s, %s".formatted(
+                    storage,
+                    HEAP,
+                    DIRECT
+                )
+            );
+        };
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses pages of file contents that aren't being used, so that they take
+ * up less memory, see {@link PagedContents#compress()}.
+ * <p>
+ * Pages are deflated one by one with the fastest compression level, so that
+ * any one of them can be inflated on its own when it's read. Pages that don't
+ * shrink by at least a quarter are left as they are, as they're likely to
+ * already be compressed.
+ * <p>
+ * A single compressor is shared by all files of a FileSystem. Deflaters and
+ * inflaters hold native memory, so they're pooled rather than created for
+ * every page or kept per thread, and all of them are freed when the
+ * compressor is closed.
+ * <p>
+ * Deflaters and inflaters can't use the memory of a shared {@code Arena}
+ * directly, so off-heap pages are copied to and from the heap on the way.
+ */
+public final class PageCompressor implements Closeable {
+
+    private static final int PAGE_SIZE = PagedContents.PAGE_SIZE;
+    private static final int MAX_COMPRESSED_SIZE = (PAGE_SIZE * 3) / 4;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final LongAdder compressedBytes = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * Total size of all compressed pages currently held by files.
+     */
+    public long compressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * Compress the contents of {@code page}.
+     *
+     * @return the compressed contents, or {@code null} if the page doesn't
+     *         compress well enough to be worth it
+     */
+    byte[] deflate(ByteBuffer page) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            byte[] output = new byte[MAX_COMPRESSED_SIZE];
+            if (page.hasArray()) {
+                deflater.setInput(page.array(), page.arrayOffset(), PAGE_SIZE);
+            } else {
+                byte[] input = new byte[PAGE_SIZE];
+                page.get(0, input);
+                deflater.setInput(input);
+            }
+            deflater.finish();
+            int length = deflater.deflate(output);
+            if (!deflater.finished()) return null;
+            compressedBytes.add(length);
+            return Arrays.copyOf(output, length);
+        } finally {
+            recycle(deflater);
+        }
+    }
+
+    /**
+     * Decompress a page compressed by {@link #deflate(ByteBuffer)} into
+     * {@code page}, which must be a whole page.
+     *
+     * @throws IllegalStateException if {@code compressed} isn't a whole
+     *                               compressed page
+     */
+    void inflate(byte[] compressed, ByteBuffer page) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(compressed);
+            int length;
+            if (page.hasArray()) {
+                length = inflater.inflate(
+                    page.array(),
+                    page.arrayOffset(),
+                    PAGE_SIZE
+                );
+            } else {
+                byte[] output = new byte[PAGE_SIZE];
+                length = inflater.inflate(output);
+                page.put(0, output);
+            }
+            if (length != PAGE_SIZE || !inflater.finished()) {
+                throw new IllegalStateException(
+                    "Compressed page inflated to %d bytes".formatted(length)
+                );
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            recycle(inflater);
+        }
+    }
+
+    /**
+     * Account for a compressed page that's no longer held by any file.
+     */
+    void discard(byte[] compressed) {
+        compressedBytes.add(-compressed.length);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    private void recycle(Deflater deflater) {
+        deflater.reset();
+        deflaters.offer(deflater);
+        // close might have emptied the pool before this was put back
+        if (closed && deflaters.remove(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private void recycle(Inflater inflater) {
+        inflater.reset();
+        inflaters.offer(inflater);
+        if (closed && inflaters.remove(inflater)) {
+            inflater.end();
+        }
+    }
+}
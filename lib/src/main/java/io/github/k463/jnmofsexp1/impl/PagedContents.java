@@ -0,0 +1,1003 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Contents of a regular file stored as a table of fixed-size pages.
+ * <p>
+ * Pages are allocated lazily the first time a byte within them is written, so
+ * growing a file only ever allocates the pages that are new, and regions that
+ * were skipped over by writing past the end of the file (holes) don't take up
+ * any memory until they're written to; holes read back as zeros.
+ * <p>
+ * The logical size of the file is tracked separately from the allocated pages
+ * and uses 64-bit offsets, so files aren't limited to {@link Integer#MAX_VALUE}
+ * bytes.
+ * <p>
+ * Pages are obtained from a {@link PageAllocator}, which decides where the
+ * contents are actually stored, and are only handed back to it on
+ * {@link #release()}.
+ * <p>
+ * Ranges of the file can be {@linkplain #map(long, long) mapped}, which moves
+ * the pages of the range into a temporary file that the file and all of its
+ * mappings share from then on, each mapping being a contiguous window of it.
+ * Such pages are owned by the mappings rather than the allocator, their
+ * memory is freed once neither the file nor any mapped buffer refers to it.
+ * <p>
+ * Contents can be {@linkplain #copy() copied} without copying any bytes: the
+ * copy shares all pages with the original, with a reference count per shared
+ * page. A shared page is only duplicated by whichever file writes to it
+ * first, and handed back to the allocator by the last file to let go of it.
+ * Pages can also be shared with files that happen to have the same contents,
+ * through a {@link ChunkStore}, see {@link #dedup(ChunkStore)}.
+ * <p>
+ * Pages that aren't being used can be {@linkplain #compress() compressed}
+ * through a {@link PageCompressor}. Compressed pages are inflated back into
+ * pages before they're written to, and should be before they're read, see
+ * {@link #decompress(long, long)}; reads still inflate any compressed pages
+ * they come across on the fly, without changing the page table, so that they
+ * don't need the file lock held exclusively.
+ * <p>
+ * This class is not thread-safe, callers are expected to hold the file lock.
+ * The exception is {@link #read(long, ByteBuffer)} which also tolerates
+ * concurrent modification, so it can be used for optimistic reads as long as
+ * the result is discarded when the read turns out to have raced a writer.
+ * <p>
+ * Appends are the other exception: they only need the file lock to be held
+ * shared, so that any number of them can run concurrently with each other and
+ * with reads, see {@link #reserve(long)}.
+ * <p>
+ * There's one instance of this class for every regular file, so it avoids
+ * holding any objects it doesn't need: the state used by appends is kept in
+ * plain fields, updated atomically through {@link VarHandle}s where needed.
+ */
+final class PagedContents {
+
+    static final int PAGE_SHIFT = 14;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final ByteBuffer[] NO_PAGES = new ByteBuffer[0];
+    private static final ByteBuffer ZERO_PAGE = ByteBuffer.allocate(
+        PAGE_SIZE
+    ).asReadOnlyBuffer();
+
+    private static final AtomicInteger[] NO_REFS = new AtomicInteger[0];
+    private static final byte[][] NO_COMPRESSED_PAGES = new byte[0][];
+    private static final MappedRegion[] NO_REGIONS = new MappedRegion[0];
+    private static final int COMMIT_SPINS = 100;
+    private static final VarHandle APPEND_END;
+
+    static {
+        try {
+            APPEND_END = MethodHandles.lookup().findVarHandle(
+                PagedContents.class,
+                "appendEnd",
+                long.class
+            );
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final PageAllocator allocator;
+    // null unless pages may be compressed
+    private final PageCompressor compressor;
+    // Only guards page table updates by concurrent appends, and appends
+    // waiting for the appends before them to be committed, everything else
+    // relies on the file lock
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Condition committed = appendLock.newCondition();
+    private ByteBuffer[] pages = NO_PAGES;
+    // Written before size is published, so that reading size first means
+    // seeing all pages up to it, see read
+    private volatile long size = 0;
+    // End of the last range reserved by an append, equal to size whenever no
+    // appends are in progress; updated through APPEND_END
+    private volatile long appendEnd = 0;
+    // Number of appends waiting on committed, only changed with appendLock
+    // held
+    private volatile int commitWaiters = 0;
+    private MappedRegion[] mappedRegions = NO_REGIONS;
+    // Backs all mapped pages, see map; null until the first mapping
+    private FileChannel mapFile;
+    // Reference counts of pages shared with copies of these contents, indexed
+    // like pages, null for pages no other file refers to; the same counter is
+    // in the table of every file sharing the page. Only as long as needed to
+    // cover the last shared page, so files that were never copied don't pay
+    // for it.
+    private AtomicInteger[] sharedRefs = NO_REFS;
+    // Compressed contents of pages, indexed like pages, for every page that
+    // has been compressed and is null in pages; only as long as needed to
+    // cover the last compressed page. Written before the page is cleared from
+    // pages, and cleared after it's put back.
+    private byte[][] compressedPages = NO_COMPRESSED_PAGES;
+
+    PagedContents(PageAllocator allocator, PageCompressor compressor) {
+        if (allocator.pageSize() != PAGE_SIZE) {
+            throw new IllegalArgumentException(
+                "Allocator page size should be %d, got: %d".formatted(
+                    PAGE_SIZE,
+                    allocator.pageSize()
+                )
+            );
+        }
+        this.allocator = allocator;
+        this.compressor = compressor;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Copy bytes starting at {@code position} into {@code dst}, until either
+     * {@code dst} is full or the end of the file is reached.
+     *
+     * @return number of bytes copied, 0 if {@code position} is at or past the
+     *         end of the file
+     */
+    int read(long position, ByteBuffer dst) {
+        // read fields only once, so that a concurrent writer can at worst make
+        // this read inconsistent data, but not fail; size has to be read first
+        // so that concurrent appends are either seen completely or not at all
+        long end = Math.min(this.size, position + dst.remaining());
+        ByteBuffer[] pages = this.pages;
+        byte[][] compressedPages = this.compressedPages;
+        int bytesRead = 0;
+
+        while (position < end) {
+            int index = pageIndex(position);
+            int offset = pageOffset(position);
+            int len = (int) Math.min(PAGE_SIZE - offset, end - position);
+            ByteBuffer page = index < pages.length ? pages[index] : null;
+            int dstPosition = dst.position();
+
+            if (page == null && index < compressedPages.length) {
+                page = inflateCopy(compressedPages[index]);
+            }
+            if (page == null) {
+                dst.put(dstPosition, ZERO_PAGE, 0, len);
+            } else {
+                dst.put(dstPosition, page, offset, len);
+            }
+            dst.position(dstPosition + len);
+
+            position += len;
+            bytesRead += len;
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Copy all remaining bytes of {@code src} into the file starting at
+     * {@code position}, growing the file if needed.
+     *
+     * @return number of bytes copied
+     */
+    int write(long position, ByteBuffer src) {
+        int bytesWritten = src.remaining();
+        long end = position + bytesWritten;
+        ensurePageTable(end);
+
+        while (src.hasRemaining()) {
+            int index = pageIndex(position);
+            int offset = pageOffset(position);
+            int len = Math.min(PAGE_SIZE - offset, src.remaining());
+            ByteBuffer page = ownPage(index);
+
+            if (page == null) {
+                page = pages[index] = allocator.allocate();
+            }
+            page.put(offset, src, src.position(), len);
+            src.position(src.position() + len);
+
+            position += len;
+        }
+
+        grow(end);
+        return bytesWritten;
+    }
+
+    /**
+     * Reserve {@code length} bytes at the end of the file for an append, and
+     * make sure that all pages of the reserved range are allocated, so that
+     * the bytes can then be copied in with {@link #writeReserved} while other
+     * appends do the same for their ranges.
+     * <p>
+     * Every reserved range must be committed with {@link #commit}, even if
+     * the bytes couldn't be written, otherwise appends of later ranges never
+     * complete.
+     * <p>
+     * Must be called with the file lock held shared, so that nothing but other
+     * appends can change the contents concurrently.
+     *
+     * @return the position of the reserved range
+     */
+    long reserve(long length) {
+        long position = (long) APPEND_END.getAndAdd(this, length);
+        if (length == 0) return position;
+
+        try {
+            allocatePages(position, position + length);
+        } catch (RuntimeException | Error e) {
+            // nothing will be written, but later appends still have to be able
+            // to commit their ranges, so leave a hole
+            commit(position, position + length);
+            throw e;
+        }
+        return position;
+    }
+
+    /**
+     * Copy all remaining bytes of {@code src} into a range returned by
+     * {@link #reserve(long)}, starting at {@code position}.
+     *
+     * @return number of bytes copied
+     */
+    int writeReserved(long position, ByteBuffer src) {
+        // the pages were allocated by this thread, so this sees at least the
+        // version of the table they were put into
+        ByteBuffer[] pages = this.pages;
+        int bytesWritten = src.remaining();
+
+        while (src.hasRemaining()) {
+            int offset = pageOffset(position);
+            int len = Math.min(PAGE_SIZE - offset, src.remaining());
+            pages[pageIndex(position)].put(offset, src, src.position(), len);
+            src.position(src.position() + len);
+            position += len;
+        }
+
+        return bytesWritten;
+    }
+
+    /**
+     * Make the range from {@code position} to {@code end}, reserved by
+     * {@link #reserve(long)}, part of the file, after waiting for all ranges
+     * before it to be committed, so that the file never has any gaps in it.
+     */
+    void commit(long position, long end) {
+        // appends before this one only have a copy left to do, so they're
+        // expected to finish soon, but they might also be virtual threads
+        // that are waiting for a carrier thread, so don't spin for long
+        for (int spins = 0; size != position; spins++) {
+            if (spins == COMMIT_SPINS) {
+                awaitCommitted(position);
+                break;
+            }
+            Thread.onSpinWait();
+        }
+        size = end;
+        if (commitWaiters > 0) {
+            appendLock.lock();
+            try {
+                committed.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Copy up to {@code count} bytes starting at {@code position} into
+     * {@code target} at {@code targetPosition}, straight from page to page.
+     *
+     * @return number of bytes copied, 0 if {@code position} is at or past the
+     *         end of the file
+     */
+    long copyTo(
+        long position,
+        long count,
+        PagedContents target,
+        long targetPosition
+    ) {
+        // count may well be Long.MAX_VALUE, avoid overflowing position + count
+        long end = position + Math.max(0, Math.min(size - position, count));
+        long bytesCopied = 0;
+
+        while (position < end) {
+            int offset = pageOffset(position);
+            int len = (int) Math.min(PAGE_SIZE - offset, end - position);
+            target.write(
+                targetPosition + bytesCopied,
+                pageOrZeros(pageIndex(position)).slice(offset, len)
+            );
+            position += len;
+            bytesCopied += len;
+        }
+
+        return bytesCopied;
+    }
+
+    /**
+     * Fill {@code slices} with read-only views of consecutive pages, starting
+     * at {@code position} and covering at most {@code count} bytes, for
+     * gathering writes straight from the stored pages.
+     *
+     * @return number of slices filled in, 0 if {@code position} is at or past
+     *         the end of the file
+     */
+    int slices(long position, long count, ByteBuffer[] slices) {
+        long end = position + Math.max(0, Math.min(size - position, count));
+        int n = 0;
+
+        while (position < end && n < slices.length) {
+            int offset = pageOffset(position);
+            int len = (int) Math.min(PAGE_SIZE - offset, end - position);
+            slices[n++] = pageOrZeros(pageIndex(position))
+                .slice(offset, len)
+                .asReadOnlyBuffer();
+            position += len;
+        }
+
+        return n;
+    }
+
+    /**
+     * A zero-filled page that isn't part of the file, for reading bytes into
+     * without holding the file lock; it then has to be handed to either
+     * {@link #publishPage} or {@link #discardPage}.
+     */
+    ByteBuffer stagingPage() {
+        return allocator.allocate();
+    }
+
+    /**
+     * Put the {@code length} bytes of a page from {@link #stagingPage()} that
+     * start at the page offset of {@code position} into the file at
+     * {@code position}, growing the file if needed. The page itself takes the
+     * place of the file's page when it replaces all of its bytes, otherwise
+     * the bytes are copied and the page handed back to the allocator.
+     */
+    void publishPage(long position, ByteBuffer page, int length) {
+        long end = position + length;
+        int index = pageIndex(position);
+        long pageEnd = (index + 1L) << PAGE_SHIFT;
+        if (
+            pageOffset(position) != 0 ||
+            end < Math.min(size, pageEnd) ||
+            isMapped(index)
+        ) {
+            write(position, page.slice(pageOffset(position), length));
+            allocator.release(page);
+            return;
+        }
+
+        ensurePageTable(end);
+        if (pages[index] != null) {
+            releasePage(index);
+        }
+        discardCompressed(index);
+        pages[index] = page;
+        grow(end);
+    }
+
+    /**
+     * Hand a page from {@link #stagingPage()} that won't be published back to
+     * the allocator.
+     */
+    void discardPage(ByteBuffer page) {
+        allocator.release(page);
+    }
+
+    /**
+     * Grow the file to {@code newSize} if it's currently smaller.
+     */
+    void grow(long newSize) {
+        if (newSize > size) {
+            size = newSize;
+            appendEnd = newSize;
+        }
+    }
+
+    /**
+     * Shrink the file to {@code newSize} if it's currently larger, handing all
+     * pages past the new end back to the allocator right away, and zeroing
+     * the rest of the page the new end falls into, so that bytes past the end
+     * read back as zeros if the file grows again.
+     * <p>
+     * Mapped pages past the new end are zeroed instead of handed back, so
+     * that they stay shared with their mappings.
+     */
+    void truncate(long newSize) {
+        if (newSize >= size) return;
+
+        int keepPages = pageCount(newSize);
+        int tableLength = keepPages;
+        for (int i = keepPages; i < pages.length; i++) {
+            if (pages[i] == null) {
+                discardCompressed(i);
+                continue;
+            }
+            if (isMapped(i)) {
+                pages[i].put(0, ZERO_PAGE, 0, PAGE_SIZE);
+                tableLength = i + 1;
+            } else {
+                releasePage(i);
+                pages[i] = null;
+            }
+        }
+
+        int tailOffset = pageOffset(newSize);
+        if (
+            tailOffset != 0 &&
+            keepPages <= pages.length &&
+            (pages[keepPages - 1] != null || isCompressed(keepPages - 1))
+        ) {
+            ownPage(keepPages - 1).put(
+                tailOffset,
+                ZERO_PAGE,
+                tailOffset,
+                PAGE_SIZE - tailOffset
+            );
+        }
+
+        // also give back the page table itself once most of it is unused
+        if (tableLength < pages.length / 4) {
+            pages = tableLength == 0
+                ? NO_PAGES
+                : Arrays.copyOf(pages, tableLength);
+        }
+        if (sharedRefs.length > pages.length) {
+            sharedRefs = pages.length == 0
+                ? NO_REFS
+                : Arrays.copyOf(sharedRefs, pages.length);
+        }
+        if (compressedPages.length > pages.length) {
+            compressedPages = pages.length == 0
+                ? NO_COMPRESSED_PAGES
+                : Arrays.copyOf(compressedPages, pages.length);
+        }
+        size = newSize;
+        appendEnd = newSize;
+    }
+
+    /**
+     * Map {@code size} bytes starting at {@code position} to a contiguous block
+     * of memory that the stored pages are views of, so that changes made
+     * through the returned segment and through the file are visible to each
+     * other, and stay so no matter how the file grows.
+     * <p>
+     * The first time a page is mapped, it's moved to the file's map file, a
+     * temporary file that every mapping is a window of, at the offset of the
+     * page in the file. Mapping a range that partially overlaps already
+     * mapped ranges, e.g. a range that was mapped before the file grew and is
+     * now mapped again up to the new end, just maps another window: pages
+     * that were mapped before stay where they are, and the operating system
+     * keeps all windows of the same page coherent, so earlier mappings stay
+     * part of the file too.
+     * <p>
+     * The map file is put in memory-backed {@code /dev/shm} where there's
+     * one, and unlinked right away, so it's gone once the file and all of its
+     * mappings are.
+     * <p>
+     * The file size isn't changed, see {@link #grow(long)}.
+     *
+     * @throws IOException if the map file couldn't be created or grown
+     */
+    MemorySegment map(long position, long size) throws IOException {
+        int firstPage = pageIndex(position);
+        // map at least one page so that empty mappings don't need special
+        // casing, they're only ever sliced to a length of 0 anyway
+        int endPage = firstPage +
+            Math.max(1, pageCount(position + size) - firstPage);
+        int pageCount = endPage - firstPage;
+
+        for (MappedRegion region : mappedRegions) {
+            if (region.contains(firstPage, pageCount)) {
+                return region.memory().asSlice(
+                    position - ((long) region.firstPage() << PAGE_SHIFT),
+                    size
+                );
+            }
+        }
+
+        if (mapFile == null) {
+            mapFile = openMapFile();
+        }
+        ensurePageTable((long) endPage << PAGE_SHIFT);
+        MemorySegment memory = mapFile.map(
+            FileChannel.MapMode.READ_WRITE,
+            (long) firstPage << PAGE_SHIFT,
+            (long) pageCount << PAGE_SHIFT,
+            Arena.ofAuto()
+        );
+        for (int i = 0; i < pageCount; i++) {
+            int index = firstPage + i;
+            // already in the map file, which the new window shows as well
+            if (isMapped(index)) continue;
+
+            MemorySegment slice = memory.asSlice(
+                (long) i << PAGE_SHIFT,
+                PAGE_SIZE
+            );
+            ByteBuffer page = pages[index];
+            if (page != null) {
+                slice.copyFrom(MemorySegment.ofBuffer(page));
+                releasePage(index);
+            } else if (isCompressed(index)) {
+                compressor.inflate(
+                    compressedPages[index],
+                    slice.asByteBuffer()
+                );
+                discardCompressed(index);
+            }
+            pages[index] = slice.asByteBuffer();
+        }
+
+        // regions within the new one aren't needed to find mapped pages
+        // anymore, their mappings keep their own windows alive
+        int kept = 0;
+        MappedRegion[] regions = new MappedRegion[mappedRegions.length + 1];
+        for (MappedRegion region : mappedRegions) {
+            if (!region.within(firstPage, pageCount)) {
+                regions[kept++] = region;
+            }
+        }
+        regions[kept++] = new MappedRegion(firstPage, pageCount, memory);
+        mappedRegions = Arrays.copyOf(regions, kept);
+        return memory.asSlice(
+            position - ((long) firstPage << PAGE_SHIFT),
+            size
+        );
+    }
+
+    /**
+     * A copy of these contents that shares all of their pages, so that it
+     * takes no memory for the bytes themselves until either of them is
+     * written to. Only the page table is copied, which takes a few bytes per
+     * page.
+     * <p>
+     * Mapped pages are duplicated right away instead, as writes through a
+     * mapping can't be noticed, and they would show through the copy.
+     * <p>
+     * Compressed pages are inflated first, so that the copy can share them.
+     * <p>
+     * Must be called with the file lock held exclusively.
+     */
+    PagedContents copy() {
+        decompress();
+        PagedContents copy = new PagedContents(allocator, compressor);
+        int count = Math.min(pageCount(size), pages.length);
+        if (count == 0) {
+            copy.grow(size);
+            return copy;
+        }
+        copy.pages = new ByteBuffer[count];
+        copy.sharedRefs = new AtomicInteger[count];
+        if (sharedRefs.length < count) {
+            sharedRefs = Arrays.copyOf(sharedRefs, count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer page = pages[i];
+            if (page == null) continue;
+            if (isMapped(i)) {
+                ByteBuffer duplicate = allocator.allocate();
+                duplicate.put(0, page, 0, PAGE_SIZE);
+                copy.pages[i] = duplicate;
+                continue;
+            }
+            AtomicInteger refs = sharedRefs[i];
+            if (refs == null) {
+                refs = sharedRefs[i] = new AtomicInteger(1);
+            }
+            refs.incrementAndGet();
+            copy.pages[i] = page;
+            copy.sharedRefs[i] = refs;
+        }
+
+        copy.grow(size);
+        return copy;
+    }
+
+    /**
+     * Share every full page that isn't shared yet with the pages of other
+     * files that have the same contents, by replacing it with the page
+     * stored in {@code store}, or storing it there if there's none yet.
+     * <p>
+     * Pages are only ever shared after they've been written, so this is
+     * meant to be called once the file is done being written to, and then
+     * only looks at the pages written since; the partial page at the end of
+     * the file and mapped pages are left alone as they're likely to change.
+     * <p>
+     * Must be called with the file lock held exclusively.
+     *
+     * @return number of pages that were replaced by a stored page
+     */
+    int dedup(ChunkStore store) {
+        int count = Math.min(pageIndex(size), pages.length);
+        int replaced = 0;
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer page = pages[i];
+            if (
+                page == null ||
+                (i < sharedRefs.length && sharedRefs[i] != null) ||
+                isMapped(i)
+            ) {
+                continue;
+            }
+            ChunkStore.Chunk chunk = store.intern(page);
+            if (chunk == null) continue;
+            if (sharedRefs.length < count) {
+                sharedRefs = Arrays.copyOf(sharedRefs, count);
+            }
+            sharedRefs[i] = chunk;
+            if (chunk.page() != page) {
+                pages[i] = chunk.page();
+                allocator.release(page);
+                replaced++;
+            }
+        }
+
+        return replaced;
+    }
+
+    /**
+     * Compress every full page that isn't shared with other files or mapped,
+     * and hand the page back to the allocator if it compressed well, see
+     * {@link PageCompressor}. Does nothing unless the contents were created
+     * with a compressor.
+     * <p>
+     * Pages in a {@link ChunkStore} that no other file refers to are
+     * compressed too, and taken out of the store; they're stored again by the
+     * next {@link #dedup(ChunkStore)} once they're inflated.
+     * <p>
+     * Meant for contents that haven't been used for a while, as using a
+     * compressed page inflates it again; the partial page at the end of the
+     * file is left alone, so that appends never have to inflate anything.
+     * <p>
+     * Must be called with the file lock held exclusively.
+     *
+     * @return {@code false} if pages were left out because other files share
+     *         them, so it's worth trying again once they might not anymore
+     */
+    boolean compress() {
+        if (compressor == null) return true;
+        int count = Math.min(pageIndex(size), pages.length);
+        boolean complete = true;
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer page = pages[i];
+            AtomicInteger refs = i < sharedRefs.length ? sharedRefs[i] : null;
+            if (page == null || isMapped(i)) continue;
+            if (refs != null && refs.get() > 1) {
+                complete = false;
+                continue;
+            }
+            byte[] deflated = compressor.deflate(page);
+            if (deflated == null) continue;
+            if (refs != null) {
+                // claimed like before writing to it, see ownPage, unless
+                // another file took a reference in the meantime
+                if (!refs.compareAndSet(1, 0)) {
+                    compressor.discard(deflated);
+                    complete = false;
+                    continue;
+                }
+                sharedRefs[i] = null;
+                forget(refs);
+            }
+            if (compressedPages.length < count) {
+                compressedPages = Arrays.copyOf(compressedPages, count);
+            }
+            compressedPages[i] = deflated;
+            pages[i] = null;
+            allocator.release(page);
+        }
+
+        return complete;
+    }
+
+    /**
+     * Whether any of the pages covering {@code length} bytes starting at
+     * {@code position} are compressed. Doesn't need the file lock held, but
+     * then only tells whether it's worth taking it for
+     * {@link #decompress(long, long)}.
+     */
+    boolean hasCompressedPages(long position, long length) {
+        byte[][] compressedPages = this.compressedPages;
+        if (compressedPages.length == 0) return false;
+        long end = position + Math.max(0, Math.min(size - position, length));
+        int endPage = Math.min(pageCount(end), compressedPages.length);
+        for (int i = pageIndex(position); i < endPage; i++) {
+            if (compressedPages[i] != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Inflate the compressed pages covering {@code length} bytes starting at
+     * {@code position} back into pages, ahead of reading them.
+     * <p>
+     * Must be called with the file lock held exclusively.
+     */
+    void decompress(long position, long length) {
+        long end = position + Math.max(0, Math.min(size - position, length));
+        int endPage = Math.min(pageCount(end), compressedPages.length);
+        for (int i = pageIndex(position); i < endPage; i++) {
+            if (compressedPages[i] != null) {
+                inflatePage(i);
+            }
+        }
+    }
+
+    /**
+     * Inflate all compressed pages back into pages, e.g. because the file is
+     * being used again.
+     * <p>
+     * Must be called with the file lock held exclusively.
+     */
+    void decompress() {
+        for (int i = 0; i < compressedPages.length; i++) {
+            if (compressedPages[i] != null) {
+                inflatePage(i);
+            }
+        }
+        compressedPages = NO_COMPRESSED_PAGES;
+    }
+
+    /**
+     * Hand all pages back to the allocator and reset the size to 0.
+     * <p>
+     * Mapped pages aren't handed back, they're left to the mappings that
+     * might still be using them.
+     */
+    void release() {
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null && !isMapped(i)) {
+                releasePage(i);
+            }
+        }
+        for (int i = 0; i < compressedPages.length; i++) {
+            discardCompressed(i);
+        }
+        pages = NO_PAGES;
+        sharedRefs = NO_REFS;
+        compressedPages = NO_COMPRESSED_PAGES;
+        size = 0;
+        appendEnd = 0;
+        mappedRegions = NO_REGIONS;
+        if (mapFile != null) {
+            try {
+                // mappings stay valid after the channel is closed
+                mapFile.close();
+            } catch (IOException e) {
+                // nothing left to lose, the file is unlinked already
+            }
+            mapFile = null;
+        }
+    }
+
+    // A temporary file to map pages from, deleted as soon as it's opened on
+    // systems that allow that, otherwise once it's closed
+    private static FileChannel openMapFile() throws IOException {
+        Path shm = Path.of("/dev/shm");
+        Path path = Files.isDirectory(shm) && Files.isWritable(shm)
+            ? Files.createTempFile(shm, "jnmofs-map-", null)
+            : Files.createTempFile("jnmofs-map-", null);
+        try {
+            return FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE
+            );
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    // Helper methods
+
+    // Make sure the page table has slots for all pages up to (exclusive) the
+    // given end offset; the table itself grows geometrically so that appending
+    // to a file is amortized O(1).
+    private void ensurePageTable(long end) {
+        int required = pageCount(end);
+        if (required <= pages.length) return;
+        int newLength = Math.max(required, pages.length * 2);
+        pages = Arrays.copyOf(pages, newLength);
+    }
+
+    private void awaitCommitted(long position) {
+        appendLock.lock();
+        // registered before checking size, and commit publishes size before
+        // checking for waiters, so either this sees the new size or commit
+        // sees this waiter
+        commitWaiters++;
+        try {
+            while (size != position) {
+                committed.awaitUninterruptibly();
+            }
+        } finally {
+            commitWaiters--;
+            appendLock.unlock();
+        }
+    }
+
+    private void allocatePages(long position, long end) {
+        appendLock.lock();
+        try {
+            ensurePageTable(end);
+            for (int i = pageIndex(position); i < pageCount(end); i++) {
+                if (ownPage(i) == null) {
+                    pages[i] = allocator.allocate();
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Make sure page {@code index} isn't shared with any other file, ahead of
+     * writing to it, by duplicating it if it is.
+     *
+     * @return the page, {@code null} if it isn't allocated
+     */
+    private ByteBuffer ownPage(int index) {
+        if (pages[index] == null && isCompressed(index)) {
+            return inflatePage(index);
+        }
+        ByteBuffer page = pages[index];
+        if (index >= sharedRefs.length) return page;
+        AtomicInteger refs = sharedRefs[index];
+        if (refs == null) return page;
+
+        sharedRefs[index] = null;
+        // Claiming the last reference keeps a chunk store from handing the
+        // page out again while it's written to. Otherwise the page has to be
+        // left as is until the copy is done, as the last of the others to let
+        // go may write to it in place.
+        if (refs.compareAndSet(1, 0)) {
+            forget(refs);
+            return page;
+        }
+        ByteBuffer duplicate = allocator.allocate();
+        duplicate.put(0, page, 0, PAGE_SIZE);
+        pages[index] = duplicate;
+        if (refs.decrementAndGet() == 0) {
+            // the others let go in the meantime
+            forget(refs);
+            allocator.release(page);
+        }
+        return duplicate;
+    }
+
+    // Hand page index back to the allocator, unless other files still share
+    // it; the caller clears the slot in the page table.
+    private void releasePage(int index) {
+        AtomicInteger refs = index < sharedRefs.length
+            ? sharedRefs[index]
+            : null;
+        if (refs == null) {
+            allocator.release(pages[index]);
+            return;
+        }
+        sharedRefs[index] = null;
+        if (refs.decrementAndGet() == 0) {
+            forget(refs);
+            allocator.release(pages[index]);
+        }
+    }
+
+    private static void forget(AtomicInteger refs) {
+        if (refs instanceof ChunkStore.Chunk chunk) {
+            chunk.forget();
+        }
+    }
+
+    private boolean isCompressed(int index) {
+        return index < compressedPages.length && compressedPages[index] != null;
+    }
+
+    // Put compressed page index back into the page table, it's never shared
+    // or mapped
+    private ByteBuffer inflatePage(int index) {
+        ByteBuffer page = allocator.allocate();
+        compressor.inflate(compressedPages[index], page);
+        pages[index] = page;
+        discardCompressed(index);
+        return page;
+    }
+
+    private void discardCompressed(int index) {
+        if (index >= compressedPages.length) return;
+        byte[] compressed = compressedPages[index];
+        if (compressed == null) return;
+        compressedPages[index] = null;
+        compressor.discard(compressed);
+    }
+
+    // A temporary copy of a compressed page, for reading it without changing
+    // the page table; null for holes
+    private ByteBuffer inflateCopy(byte[] compressed) {
+        if (compressed == null) return null;
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        try {
+            compressor.inflate(compressed, page);
+        } catch (IllegalStateException e) {
+            // only when racing compress() without the file lock, in which
+            // case the result is discarded anyway, see read
+        }
+        return page;
+    }
+
+    private boolean isMapped(int index) {
+        for (MappedRegion region : mappedRegions) {
+            if (region.contains(index, 1)) return true;
+        }
+        return false;
+    }
+
+    private ByteBuffer pageOrZeros(int index) {
+        ByteBuffer page = pages[index];
+        if (page == null && index < compressedPages.length) {
+            page = inflateCopy(compressedPages[index]);
+        }
+        return page == null ? ZERO_PAGE : page;
+    }
+
+    static int pageIndex(long position) {
+        return Math.toIntExact(position >>> PAGE_SHIFT);
+    }
+
+    static int pageOffset(long position) {
+        return (int) (position & PAGE_MASK);
+    }
+
+    static int pageCount(long size) {
+        return Math.toIntExact((size + PAGE_MASK) >>> PAGE_SHIFT);
+    }
+
+    // Pages firstPage (inclusive) to firstPage + pageCount (exclusive) that are
+    // views of memory, a window of the map file
+    private record MappedRegion(
+        int firstPage,
+        int pageCount,
+        MemorySegment memory
+    ) {
+        boolean contains(int first, int count) {
+            return first >= firstPage && first + count <= firstPage + pageCount;
+        }
+
+        boolean within(int first, int count) {
+            return firstPage >= first && firstPage + pageCount <= first + count;
+        }
+    }
+}
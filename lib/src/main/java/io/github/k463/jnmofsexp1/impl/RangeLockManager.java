@@ -0,0 +1,357 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.impl;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-range locks held on a single file, see {@link FileChannel#lock}.
+ * <p>
+ * Every channel is treated like a separate process would be by a regular
+ * filesystem: a lock that conflicts with one held through another channel
+ * blocks, or fails in the case of {@code tryLock}, until that lock is
+ * released, while a lock that overlaps one already held through the same
+ * channel throws {@link OverlappingFileLockException}, like it does for the
+ * default filesystem.
+ * <p>
+ * Exclusive locks never overlap any other lock, so they're kept in a map
+ * sorted by position in which at most one lock can overlap a given range. The
+ * same goes for the ranges covered by shared locks, which are kept as disjoint
+ * segments with the number of shared locks covering each, so checking for a
+ * conflict takes O(log n) in the number of held locks in either case.
+ * <p>
+ * All state is guarded by a single lock that's only ever held for the lookups
+ * and updates, and never while waiting, so that locks on disjoint ranges only
+ * contend on that briefly. Waiting is done on a {@link Condition}, which
+ * doesn't pin virtual threads to their carrier.
+ */
+final class RangeLockManager {
+
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition released = mutex.newCondition();
+    // guarded by mutex
+    private final NavigableMap<Long, RangeLock> exclusiveLocks =
+        new TreeMap<>();
+    private final NavigableMap<Long, SharedSegment> sharedSegments =
+        new TreeMap<>();
+    private final Map<FileChannel, NavigableMap<Long, RangeLock>> channelLocks =
+        new HashMap<>();
+
+    /**
+     * Acquire a lock, waiting for conflicting locks held through other
+     * channels to be released.
+     *
+     * @return the lock, or {@code null} if the channel was closed while
+     *         waiting
+     * @throws OverlappingFileLockException if the range overlaps a lock held
+     *         through the same channel
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    FileLock lock(FileChannel channel, long position, long size, boolean shared)
+        throws InterruptedException {
+        mutex.lock();
+        try {
+            checkNotHeld(channel, position, size);
+            while (isLocked(position, size, shared)) {
+                if (!channel.isOpen()) return null;
+                released.await();
+                // the same channel might have locked an overlapping range on
+                // another thread in the meantime
+                checkNotHeld(channel, position, size);
+            }
+            if (!channel.isOpen()) return null;
+            return add(channel, position, size, shared);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Acquire a lock if there are no conflicting locks held through other
+     * channels.
+     *
+     * @return the lock, or {@code null} if there are conflicting locks
+     * @throws OverlappingFileLockException if the range overlaps a lock held
+     *         through the same channel
+     */
+    FileLock tryLock(
+        FileChannel channel,
+        long position,
+        long size,
+        boolean shared
+    ) throws ClosedChannelException {
+        mutex.lock();
+        try {
+            checkNotHeld(channel, position, size);
+            if (isLocked(position, size, shared)) return null;
+            if (!channel.isOpen()) throw new ClosedChannelException();
+            return add(channel, position, size, shared);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Release all locks held through the given channel, and wake up threads
+     * waiting for a lock through it so they can notice it was closed.
+     */
+    void releaseAll(FileChannel channel) {
+        mutex.lock();
+        try {
+            NavigableMap<Long, RangeLock> locks = channelLocks.remove(channel);
+            if (locks != null) {
+                for (RangeLock lock : locks.values()) {
+                    remove(lock);
+                }
+            }
+            released.signalAll();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Release a single lock, on behalf of FileLock.release
+    private void release(RangeLock lock) {
+        mutex.lock();
+        try {
+            if (!lock.valid) return;
+            lock.valid = false;
+            if (lock.size() == 0) return;
+
+            NavigableMap<Long, RangeLock> locks = channelLocks.get(
+                lock.channel()
+            );
+            locks.remove(lock.position());
+            if (locks.isEmpty()) {
+                channelLocks.remove(lock.channel());
+            }
+            remove(lock);
+            released.signalAll();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Helper methods, all of which must be called with mutex held
+
+    private void checkNotHeld(FileChannel channel, long position, long size) {
+        NavigableMap<Long, RangeLock> locks = channelLocks.get(channel);
+        if (locks != null && overlaps(locks, position, size)) {
+            throw new OverlappingFileLockException();
+        }
+    }
+
+    private boolean isLocked(long position, long size, boolean shared) {
+        return (
+            overlaps(exclusiveLocks, position, size) ||
+            (!shared && overlaps(sharedSegments, position, size))
+        );
+    }
+
+    private RangeLock add(
+        FileChannel channel,
+        long position,
+        long size,
+        boolean shared
+    ) {
+        RangeLock lock = new RangeLock(channel, position, size, shared);
+        // empty ranges don't overlap anything, so there's no need to keep
+        // track of them, they just have to stay valid until released
+        if (size == 0) return lock;
+
+        if (shared) {
+            addShared(position, end(position, size));
+        } else {
+            exclusiveLocks.put(position, lock);
+        }
+        channelLocks.computeIfAbsent(channel, c -> new TreeMap<>()).put(
+            position,
+            lock
+        );
+        return lock;
+    }
+
+    private void remove(RangeLock lock) {
+        lock.valid = false;
+        if (lock.isShared()) {
+            long end = end(lock.position(), lock.size());
+            removeShared(lock.position(), end);
+            merge(lock.position());
+            merge(end);
+        } else {
+            exclusiveLocks.remove(lock.position());
+        }
+    }
+
+    private void addShared(long start, long end) {
+        split(start);
+        split(end);
+        // gaps between the segments are only added once the segments have
+        // been walked, as the map can't be changed while it's iterated
+        List<Long> gaps = new ArrayList<>();
+        long position = start;
+        for (var entry : sharedSegments.subMap(start, end).entrySet()) {
+            long segmentStart = entry.getKey();
+            SharedSegment segment = entry.getValue();
+            if (segmentStart > position) {
+                // not covered by any shared lock yet
+                gaps.add(position);
+                gaps.add(segmentStart);
+            }
+            segment.count++;
+            position = segment.end;
+        }
+        if (position < end) {
+            gaps.add(position);
+            gaps.add(end);
+        }
+        for (int i = 0; i < gaps.size(); i += 2) {
+            sharedSegments.put(
+                gaps.get(i),
+                new SharedSegment(gaps.get(i + 1), 1)
+            );
+        }
+    }
+
+    private void removeShared(long start, long end) {
+        // segments may have been merged across the ends of the range since the
+        // lock was added, see merge
+        split(start);
+        split(end);
+        var segments = sharedSegments.subMap(start, end).values().iterator();
+        while (segments.hasNext()) {
+            if (--segments.next().count == 0) {
+                segments.remove();
+            }
+        }
+    }
+
+    // Make sure no shared segment spans across the given position.
+    private void split(long position) {
+        var floor = sharedSegments.lowerEntry(position);
+        if (floor == null) return;
+        SharedSegment segment = floor.getValue();
+        if (segment.end > position) {
+            sharedSegments.put(
+                position,
+                new SharedSegment(segment.end, segment.count)
+            );
+            segment.end = position;
+        }
+    }
+
+    // Join the shared segments on both sides of the given position if they're
+    // adjacent and covered by the same number of locks, so that segments split
+    // for locks that are long gone don't pile up.
+    private void merge(long position) {
+        SharedSegment segment = sharedSegments.get(position);
+        var lower = sharedSegments.lowerEntry(position);
+        if (
+            segment != null &&
+            lower != null &&
+            lower.getValue().end == position &&
+            lower.getValue().count == segment.count
+        ) {
+            lower.getValue().end = segment.end;
+            sharedSegments.remove(position);
+        }
+    }
+
+    // The map holds disjoint ranges sorted by position, so only the last one
+    // that starts before the end of the given range can overlap it.
+    private static boolean overlaps(
+        NavigableMap<Long, ? extends Range> ranges,
+        long position,
+        long size
+    ) {
+        if (size == 0) return false;
+        var floor = ranges.lowerEntry(end(position, size));
+        return floor != null && floor.getValue().end() > position;
+    }
+
+    // lock(0, Long.MAX_VALUE, ...) is the usual way to lock a whole file, so
+    // ranges reaching past Long.MAX_VALUE are simply cut off there
+    private static long end(long position, long size) {
+        long end = position + size;
+        return end < 0 ? Long.MAX_VALUE : end;
+    }
+
+    private interface Range {
+        long end();
+    }
+
+    private static final class SharedSegment implements Range {
+
+        long end;
+        int count;
+
+        SharedSegment(long end, int count) {
+            this.end = end;
+            this.count = count;
+        }
+
+        @Override
+        public long end() {
+            return end;
+        }
+    }
+
+    private final class RangeLock extends FileLock implements Range {
+
+        // written with mutex held, but also read without it by isValid
+        private volatile boolean valid = true;
+
+        RangeLock(
+            FileChannel channel,
+            long position,
+            long size,
+            boolean shared
+        ) {
+            super(channel, position, size, shared);
+        }
+
+        @Override
+        public long end() {
+            return RangeLockManager.end(position(), size());
+        }
+
+        @Override
+        public boolean isValid() {
+            // locks are released when their channel is closed
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!channel().isOpen()) throw new ClosedChannelException();
+            RangeLockManager.this.release(this);
+        }
+    }
+}
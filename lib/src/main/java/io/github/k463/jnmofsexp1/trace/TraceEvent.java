@@ -0,0 +1,49 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.trace;
+
+import java.nio.file.Path;
+
+/**
+ * A single traced FileSystem operation.
+ *
+ * @param op            the kind of operation
+ * @param path          the path the operation was performed on, as given by
+ *                      the caller, may be null if there's no single path
+ * @param bytes         number of bytes transferred, or removed from the file
+ *                      by TRUNCATE, 0 for operations that don't transfer
+ *                      any file contents
+ * @param durationNanos how long the operation took
+ */
+public record TraceEvent(Op op, Path path, long bytes, long durationNanos) {
+    public enum Op {
+        /** A namespace of the FileSystem was initialised. */
+        INIT,
+        /** A path was resolved to its location within a namespace. */
+        RESOLVE,
+        CREATE,
+        DELETE,
+        MOVE,
+        COPY,
+        OPEN,
+        READ,
+        WRITE,
+        TRUNCATE,
+        CLOSE,
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * jnmofsexp1 - LIC_PRJ_DESC
+ * Copyright (C) 2025 Elthevoypra
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.k463.jnmofsexp1.trace;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Records {@link TraceEvent}s for the operations of a single FileSystem.
+ * <p>
+ * The most recent events are kept in a fixed-size ring buffer that writers
+ * claim slots in with a single atomic increment, so recording never blocks,
+ * and every event is also passed to an optional sink as it's recorded.
+ * <p>
+ * A disabled tracer records nothing. Call sites are expected to bracket an
+ * operation with {@link #startNanos()} and
+ * {@link #record(TraceEvent.Op, Path, long, long)}, which only check a final
+ * field when disabled, so tracing costs nothing unless it's turned on.
+ */
+public final class Tracer {
+
+    private static final Tracer DISABLED = new Tracer(false, 1, null);
+
+    private final boolean enabled;
+    private final AtomicReferenceArray<TraceEvent> events;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Consumer<? super TraceEvent> sink;
+
+    private Tracer(
+        boolean enabled,
+        int capacity,
+        Consumer<? super TraceEvent> sink
+    ) {
+        this.enabled = enabled;
+        this.events = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.sink = sink;
+    }
+
+    public static Tracer disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Create an enabled tracer.
+     *
+     * @param capacity number of recent events to keep, rounded up to the next
+     *                 power of two
+     * @param sink     consumer every event is passed to as it's recorded, may
+     *                 be null; it's called on the thread performing the
+     *                 operation, so it should be fast and thread-safe
+     */
+    public static Tracer create(
+        int capacity,
+        Consumer<? super TraceEvent> sink
+    ) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                "Trace buffer capacity must be > 0, got: %d".formatted(
+                    capacity
+                )
+            );
+        }
+        int roundedCapacity = capacity == 1
+            ? 1
+            : Integer.highestOneBit(capacity - 1) << 1;
+        return new Tracer(true, roundedCapacity, sink);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start time to later pass to {@link #record}, or 0 if disabled.
+     */
+    public long startNanos() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record an operation that started at {@code startNanos} and just
+     * completed.
+     */
+    public void record(
+        TraceEvent.Op op,
+        Path path,
+        long bytes,
+        long startNanos
+    ) {
+        if (!enabled) return;
+        TraceEvent event = new TraceEvent(
+            op,
+            path,
+            bytes,
+            System.nanoTime() - startNanos
+        );
+        events.set((int) (sequence.getAndIncrement() & mask), event);
+        if (sink != null) {
+            sink.accept(event);
+        }
+    }
+
+    /**
+     * The most recently recorded events, oldest first.
+     * <p>
+     * Events recorded while this runs may or may not be included, and may
+     * replace older events that would've otherwise been included.
+     */
+    public List<TraceEvent> recentEvents() {
+        long end = sequence.get();
+        long start = Math.max(0, end - events.length());
+        List<TraceEvent> res = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            TraceEvent event = events.get((int) (seq & mask));
+            if (event != null) {
+                res.add(event);
+            }
+        }
+        return res;
+    }
+}
@@ -20,16 +20,34 @@ package io.github.k463.jnmofsexp1;
 import static io.github.k463.jnmofsexp1.JnmofsTestUtils.buffer;
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.sun.management.ThreadMXBean;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.Pipe;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.Test;
 
 public class JnmofsFileChannelTest {
@@ -97,4 +115,859 @@ public class JnmofsFileChannelTest {
             );
         }
     }
+
+    @Test
+    public void testAppendAcrossPages() throws Exception {
+        byte[] record = "0123456789abcdef".repeat(64).getBytes();
+        int records = 100;
+
+        // APPEND alone opens the channel for writing, like it does for the
+        // default filesystem
+        try (FileChannel channel = channel(StandardOpenOption.APPEND)) {
+            for (int i = 0; i < records; i++) {
+                assertEquals(
+                    record.length,
+                    channel.write(ByteBuffer.wrap(record))
+                );
+            }
+            assertEquals((long) records * record.length, channel.size());
+            assertEquals(channel.size(), channel.position());
+            assertThrows(NonReadableChannelException.class, () ->
+                channel.read(ByteBuffer.allocate(1))
+            );
+        }
+        assertThrows(IllegalArgumentException.class, () ->
+            channel(
+                StandardOpenOption.APPEND,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        );
+        Path log = utils.getTestFsRoot().resolve("append-log");
+        try (
+            FileChannel channel = FileChannel.open(
+                log,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND
+            )
+        ) {
+            channel.write(ByteBuffer.wrap(record));
+        }
+        assertArrayEquals(record, Files.readAllBytes(log));
+
+        try (FileChannel channel = channel()) {
+            ByteBuffer buf = ByteBuffer.allocate(record.length);
+            for (int i = 0; i < records; i++) {
+                buf.clear();
+                assertEquals(record.length, channel.read(buf));
+                assertArrayEquals(record, buf.array());
+            }
+            assertEquals(-1, channel.read(buf.clear()));
+        }
+    }
+
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        Path file = utils.getTestFsRoot().resolve("concurrent-appends");
+        Files.createFile(file);
+        // records don't line up with page boundaries
+        int recordSize = 1000;
+        int writers = 16;
+        int records = 200;
+
+        try (
+            ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                byte[] record = new byte[recordSize];
+                Arrays.fill(record, (byte) (i + 1));
+                results.add(
+                    executor.submit(() -> {
+                        try (
+                            FileChannel channel = FileChannel.open(
+                                file,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND
+                            );
+                        ) {
+                            for (int j = 0; j < records; j++) {
+                                channel.write(ByteBuffer.wrap(record));
+                                assertEquals(
+                                    0,
+                                    channel.position() % recordSize
+                                );
+                            }
+                        }
+                        return null;
+                    })
+                );
+            }
+
+            // check that readers only ever see complete records while the
+            // writers are still going
+            try (
+                FileChannel channel = FileChannel.open(
+                    file,
+                    StandardOpenOption.READ
+                );
+            ) {
+                ByteBuffer buf = ByteBuffer.allocate(10 * recordSize);
+                while (!results.stream().allMatch(Future::isDone)) {
+                    long size = channel.size();
+                    assertEquals(0, size % recordSize);
+                    channel.read(
+                        buf.clear(),
+                        Math.max(0, size - buf.capacity())
+                    );
+                    assertRecords(buf.flip(), recordSize);
+                }
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+
+        byte[] contents = Files.readAllBytes(file);
+        assertEquals(writers * records * recordSize, contents.length);
+        assertRecords(ByteBuffer.wrap(contents), recordSize);
+    }
+
+    // Check that all complete records in buf consist of a single non-zero value
+    private static void assertRecords(ByteBuffer buf, int recordSize) {
+        for (int i = 0; i + recordSize <= buf.limit(); i += recordSize) {
+            byte value = buf.get(i);
+            assertNotEquals(0, value);
+            for (int j = i; j < i + recordSize; j++) {
+                assertEquals(value, buf.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        Path file = utils.getTestFsRoot().resolve("truncate-file");
+        int pageSize = 1 << 14;
+        byte[] data = new byte[5 * pageSize];
+        Arrays.fill(data, (byte) 1);
+        long newSize = pageSize + pageSize / 2;
+
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+        ) {
+            channel.write(ByteBuffer.wrap(data));
+            assertSame(channel, channel.truncate(newSize));
+            assertEquals(newSize, channel.size());
+            assertEquals(newSize, channel.position());
+
+            // truncating to a larger size doesn't change the file
+            channel.position(10);
+            channel.truncate(data.length);
+            assertEquals(newSize, channel.size());
+            assertEquals(10, channel.position());
+
+            // bytes past the old end read back as zeros when the file grows
+            channel.write(buffer("x"), 3 * pageSize);
+            ByteBuffer buf = ByteBuffer.allocate(2);
+            assertEquals(2, channel.read(buf, newSize - 1));
+            assertArrayEquals(new byte[] { 1, 0 }, buf.array());
+            assertEquals(2, channel.read(buf.clear(), 3 * pageSize - 1));
+            assertArrayEquals(new byte[] { 0, 'x' }, buf.array());
+
+            channel.truncate(0);
+            assertEquals(0, channel.size());
+            assertEquals(-1, channel.read(buf.clear(), 0));
+        }
+
+        // writing to an existing file through an OutputStream truncates it
+        Files.write(file, data);
+        Files.write(file, "short".getBytes());
+        assertArrayEquals("short".getBytes(), Files.readAllBytes(file));
+
+        // but TRUNCATE_EXISTING is ignored when only reading
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.READ,
+                StandardOpenOption.TRUNCATE_EXISTING
+            );
+        ) {
+            assertEquals(5, channel.size());
+        }
+    }
+
+    @Test
+    public void testLargeOffsets() throws Exception {
+        long offset = 3L << 30; // 3 GiB, past Integer.MAX_VALUE
+
+        try (FileChannel channel = channel(StandardOpenOption.WRITE)) {
+            channel.write(buffer("head"));
+            channel.position(offset);
+            assertEquals(4, channel.write(buffer("tail")));
+            assertEquals(offset + 4, channel.position());
+            assertEquals(offset + 4, channel.size());
+        }
+
+        try (FileChannel channel = channel()) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            // the skipped over region reads back as zeros
+            assertEquals(8, channel.read(buf, offset - 4));
+            assertArrayEquals("\0\0\0\0tail".getBytes(), buf.array());
+            assertEquals(-1, channel.read(buf.clear(), offset + 4));
+        }
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        // spans several pages and doesn't end on a page boundary
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+        Path root = utils.getTestFsRoot();
+        Path source = root.resolve("transfer-source");
+        Path copy = root.resolve("transfer-copy");
+        Path back = root.resolve("transfer-back");
+        Path external = Files.createTempFile("jnmofs-transfer", null);
+
+        try {
+            Files.createFile(source);
+            try (
+                FileChannel channel = FileChannel.open(
+                    source,
+                    StandardOpenOption.WRITE
+                );
+            ) {
+                channel.write(ByteBuffer.wrap(data));
+            }
+
+            // jnmofs to jnmofs, both directions
+            try (
+                FileChannel src = FileChannel.open(
+                    source,
+                    StandardOpenOption.READ
+                );
+                FileChannel dst = FileChannel.open(
+                    copy,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE
+                );
+            ) {
+                assertEquals(1000, src.transferTo(0, 1000, dst));
+                assertEquals(1000, dst.position());
+                assertEquals(0, src.position());
+                src.position(1000);
+                assertEquals(
+                    data.length - 1000,
+                    dst.transferFrom(src, 1000, Long.MAX_VALUE)
+                );
+                assertEquals(data.length, src.position());
+                // transferFrom doesn't change the target position
+                assertEquals(1000, dst.position());
+                // nothing to transfer past the end
+                assertEquals(0, src.transferTo(data.length, 10, dst));
+                assertEquals(0, dst.transferFrom(src, data.length + 1, 10));
+            }
+            assertArrayEquals(data, Files.readAllBytes(copy));
+
+            // jnmofs to and from the default filesystem
+            try (
+                FileChannel src = FileChannel.open(
+                    copy,
+                    StandardOpenOption.READ
+                );
+                FileChannel dst = FileChannel.open(
+                    external,
+                    StandardOpenOption.WRITE
+                );
+            ) {
+                assertEquals(
+                    data.length,
+                    src.transferTo(0, Long.MAX_VALUE, dst)
+                );
+            }
+            assertArrayEquals(data, Files.readAllBytes(external));
+
+            try (
+                FileChannel src = FileChannel.open(
+                    external,
+                    StandardOpenOption.READ
+                );
+                FileChannel dst = FileChannel.open(
+                    back,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE
+                );
+            ) {
+                assertEquals(
+                    data.length,
+                    dst.transferFrom(src, 0, Long.MAX_VALUE)
+                );
+            }
+            assertArrayEquals(data, Files.readAllBytes(back));
+        } finally {
+            Files.delete(external);
+        }
+    }
+
+    @Test
+    public void testTransferWithinFile() throws Exception {
+        // more than is copied through the intermediate buffer at a time
+        byte[] data = new byte[3_000_000];
+        new Random(42).nextBytes(data);
+        int shift = 1000;
+
+        try (
+            FileChannel channel = channel(
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            channel.write(ByteBuffer.wrap(data));
+
+            // overlapping ranges, target before the source
+            byte[] expected = data.clone();
+            System.arraycopy(expected, shift, expected, 0, data.length - shift);
+            channel.position(0);
+            assertEquals(
+                data.length - shift,
+                channel.transferTo(shift, Long.MAX_VALUE, channel)
+            );
+            assertEquals(data.length - shift, channel.position());
+            ByteBuffer buf = ByteBuffer.allocate(data.length);
+            channel.read(buf, 0);
+            assertArrayEquals(expected, buf.array());
+
+            // overlapping ranges, target after the source and past the end
+            byte[] shifted = Arrays.copyOf(expected, data.length + shift);
+            System.arraycopy(shifted, 0, shifted, shift, data.length);
+            channel.position(0);
+            assertEquals(
+                data.length,
+                channel.transferFrom(channel, shift, Long.MAX_VALUE)
+            );
+            assertEquals(data.length, channel.position());
+            assertEquals(shifted.length, channel.size());
+            buf = ByteBuffer.allocate(shifted.length);
+            channel.read(buf, 0);
+            assertArrayEquals(shifted, buf.array());
+        }
+    }
+
+    @Test
+    public void testTransferFromBlockingSource() throws Exception {
+        byte[] old = new byte[40_000];
+        byte[] data = new byte[30_000];
+        Arrays.fill(old, (byte) 1);
+        Arrays.fill(data, (byte) 2);
+        Pipe pipe = Pipe.open();
+
+        try (
+            FileChannel channel = channel(
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ
+            );
+            ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor();
+            // closed before the executor, so that it doesn't wait forever for
+            // a transfer that never gets its bytes
+            Pipe.SourceChannel source = pipe.source();
+            Pipe.SinkChannel sink = pipe.sink();
+        ) {
+            channel.write(ByteBuffer.wrap(old), 0);
+            Future<Long> transfer = executor.submit(() ->
+                channel.transferFrom(source, 0, data.length)
+            );
+
+            // the file stays usable while the transfer waits for the source
+            Future<?> other = executor.submit(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(old.length);
+                assertEquals(old.length, channel.read(buf, 0));
+                assertArrayEquals(old, buf.array());
+                channel.write(ByteBuffer.wrap(new byte[] { 1 }), 100);
+                return null;
+            });
+            other.get(5, TimeUnit.SECONDS);
+            assertFalse(transfer.isDone());
+
+            // the bytes arrive in pieces, partly replacing pages
+            for (int i = 0; i < data.length; i += 5000) {
+                sink.write(ByteBuffer.wrap(data, i, 5000));
+            }
+            sink.close();
+            assertEquals(data.length, (long) transfer.get());
+
+            ByteBuffer buf = ByteBuffer.allocate(old.length);
+            assertEquals(old.length, channel.read(buf, 0));
+            assertArrayEquals(
+                data,
+                Arrays.copyOfRange(buf.array(), 0, data.length)
+            );
+            assertArrayEquals(
+                Arrays.copyOfRange(old, data.length, old.length),
+                Arrays.copyOfRange(buf.array(), data.length, old.length)
+            );
+        }
+    }
+
+    @Test
+    public void testMap() throws Exception {
+        Path file = utils.getTestFsRoot().resolve("map-file");
+        int pageSize = 1 << 14;
+
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+        ) {
+            channel.write(buffer("hello"), pageSize - 2);
+
+            // mapping past the end grows the file
+            MappedByteBuffer rw = channel.map(
+                MapMode.READ_WRITE,
+                0,
+                2 * pageSize
+            );
+            assertEquals(2 * pageSize, channel.size());
+            assertEquals('h', rw.get(pageSize - 2));
+            assertEquals('o', rw.get(pageSize + 2));
+
+            // changes are visible both ways
+            rw.put(pageSize - 2, (byte) 'j');
+            ByteBuffer buf = ByteBuffer.allocate(5);
+            channel.read(buf, pageSize - 2);
+            assertArrayEquals("jello".getBytes(), buf.array());
+            channel.write(buffer("world"), 10);
+            assertEquals('w', rw.get(10));
+
+            // mappings of a part of a mapped range share its memory
+            MappedByteBuffer ro = channel.map(MapMode.READ_ONLY, 10, 5);
+            assertTrue(ro.isReadOnly());
+            assertEquals(5, ro.capacity());
+            rw.put(11, (byte) 'O');
+            assertEquals('O', ro.get(1));
+
+            // growing the file doesn't detach the mapping
+            channel.write(buffer("tail"), 10 * pageSize);
+            rw.put(0, (byte) 'x');
+            buf.clear().limit(1);
+            channel.read(buf, 0);
+            assertEquals('x', buf.get(0));
+
+            // private mappings are copies
+            MappedByteBuffer copy = channel.map(MapMode.PRIVATE, 10, 5);
+            copy.put(0, (byte) 'W');
+            assertEquals('w', rw.get(10));
+            rw.put(12, (byte) 'R');
+            assertEquals('r', copy.get(2));
+        }
+
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.READ
+            );
+        ) {
+            assertThrows(NonWritableChannelException.class, () ->
+                channel.map(MapMode.READ_WRITE, 0, 1)
+            );
+            assertThrows(IOException.class, () ->
+                channel.map(MapMode.READ_ONLY, 0, channel.size() + 1)
+            );
+            MappedByteBuffer tail = channel.map(
+                MapMode.READ_ONLY,
+                10 * pageSize,
+                4
+            );
+            assertEquals('t', tail.get(0));
+        }
+    }
+
+    @Test
+    public void testRemap() throws Exception {
+        Path root = utils.getTestFsRoot();
+        int pageSize = 1 << 14;
+
+        try (
+            FileChannel channel = FileChannel.open(
+                root.resolve("remap-file"),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+        ) {
+            // remapping a file after it grew
+            channel.write(buffer("head"), 0);
+            MappedByteBuffer small = channel.map(MapMode.READ_WRITE, 0, 1000);
+            channel.write(buffer("tail"), 40_000);
+            MappedByteBuffer large = channel.map(
+                MapMode.READ_WRITE,
+                0,
+                41_000
+            );
+            assertEquals('h', large.get(0));
+            assertEquals('t', large.get(40_000));
+            large.put(0, (byte) 'H');
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            channel.read(buf, 0);
+            assertEquals('H', buf.get(0));
+            channel.write(buffer("T"), 40_000);
+            assertEquals('T', large.get(40_000));
+            // the earlier mapping stays part of the file, both ways
+            assertEquals('H', small.get(0));
+            small.put(2, (byte) 'A');
+            assertEquals('A', large.get(2));
+            buf.clear();
+            channel.read(buf, 2);
+            assertEquals('A', buf.get(0));
+
+            channel.write(buffer("more"), 50_000);
+            MappedByteBuffer larger = channel.map(
+                MapMode.READ_WRITE,
+                0,
+                50_004
+            );
+            larger.put(1, (byte) 'E');
+            assertEquals('E', large.get(1));
+            assertEquals('E', small.get(1));
+            assertEquals('m', larger.get(50_000));
+            larger.put(50_001, (byte) 'O');
+            buf.clear();
+            channel.read(buf, 50_001);
+            assertEquals('O', buf.get(0));
+
+            // ranges overlapping a mapped range at their start, or only
+            // touching its pages
+            MappedByteBuffer far = channel.map(
+                MapMode.READ_WRITE,
+                5 * pageSize,
+                10
+            );
+            MappedByteBuffer across = channel.map(
+                MapMode.READ_WRITE,
+                5 * pageSize - 10,
+                20
+            );
+            across.put(10, (byte) 'f');
+            buf.clear();
+            channel.read(buf, 5 * pageSize);
+            assertEquals('f', buf.get(0));
+            assertEquals('H', channel.map(MapMode.READ_ONLY, 0, 1).get(0));
+            assertEquals(10, far.capacity());
+        }
+
+        try (
+            FileChannel channel = FileChannel.open(
+                root.resolve("remap-file-2"),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+        ) {
+            // an empty mapping still maps a page
+            channel.map(MapMode.READ_WRITE, 0, 0);
+            MappedByteBuffer mapped = channel.map(
+                MapMode.READ_WRITE,
+                pageSize - 2,
+                4
+            );
+            mapped.put(0, (byte) 'a');
+            mapped.put(3, (byte) 'b');
+            assertEquals(pageSize + 2, channel.size());
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            channel.read(buf, pageSize - 2);
+            assertEquals('a', buf.get(0));
+            assertEquals('b', buf.get(3));
+        }
+    }
+
+    @Test
+    public void testConcurrentPositionalReads() throws Exception {
+        // the block straddles a page boundary, so a torn read would show up as
+        // a mix of two different fill values
+        long blockPosition = 16 * 1024 - 2048;
+        byte[] block = new byte[4096];
+        int readers = 8;
+        AtomicBoolean done = new AtomicBoolean(false);
+
+        try (
+            FileChannel writer = channel(
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ
+            );
+            ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            writer.write(ByteBuffer.wrap(block), blockPosition);
+
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                results.add(
+                    executor.submit(() -> {
+                        ByteBuffer buf = ByteBuffer.allocate(block.length);
+                        while (!done.get()) {
+                            assertEquals(
+                                block.length,
+                                writer.read(buf.clear(), blockPosition)
+                            );
+                            for (byte b : buf.array()) {
+                                assertEquals(buf.get(0), b);
+                            }
+                        }
+                        return null;
+                    })
+                );
+            }
+
+            for (int i = 0; i < 2000; i++) {
+                Arrays.fill(block, (byte) i);
+                writer.write(ByteBuffer.wrap(block), blockPosition);
+            }
+            done.set(true);
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+    }
+
+    @Test
+    public void testLocks() throws Exception {
+        try (
+            FileChannel first = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel second = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            FileLock lock = first.lock(0, 100, false);
+            assertTrue(lock.isValid());
+            assertSame(first, lock.channel());
+            // conflicting locks through other channels aren't granted, but
+            // overlapping locks through the same channel are an error
+            assertNull(second.tryLock(50, 100, true));
+            assertThrows(OverlappingFileLockException.class, () ->
+                first.tryLock(99, 1, false)
+            );
+            FileLock disjoint = second.tryLock(100, 100, false);
+            assertNotNull(disjoint);
+
+            CountDownLatch locking = new CountDownLatch(1);
+            Thread[] waiter = new Thread[1];
+            Future<FileLock> waiting = executor.submit(() -> {
+                waiter[0] = Thread.currentThread();
+                locking.countDown();
+                return second.lock(0, 50, true);
+            });
+            locking.await();
+            // the waiter parks until a lock is released, so once it's parked
+            // it can only have gotten there by finding the range locked
+            while (
+                !waiting.isDone() &&
+                waiter[0].getState() != Thread.State.WAITING
+            ) {
+                Thread.onSpinWait();
+            }
+            assertFalse(waiting.isDone());
+            lock.release();
+            assertFalse(lock.isValid());
+            FileLock shared = waiting.get();
+            assertTrue(shared.isShared());
+
+            // shared locks only conflict with exclusive ones
+            FileLock otherShared = first.tryLock(25, 50, true);
+            assertNotNull(otherShared);
+            assertNull(first.tryLock(0, 10, false));
+            shared.release();
+            assertNotNull(first.tryLock(0, 10, false));
+            otherShared.release();
+
+            // closing a channel releases its locks
+            second.close();
+            assertFalse(disjoint.isValid());
+            assertNotNull(first.tryLock(100, 100, false));
+            first.close();
+        }
+
+        // a shared lock covering several shared locks and the gaps between
+        // them
+        try (
+            FileChannel first = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel second = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel third = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel fourth = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            first.lock(0, 5, true);
+            second.lock(10, 5, true);
+            third.lock(20, 5, true);
+            FileLock spanning = fourth.lock(0, 25, true);
+            assertTrue(spanning.isValid());
+            assertNull(first.tryLock(5, 5, false));
+            assertNull(first.tryLock(15, 5, false));
+            spanning.release();
+            assertNotNull(first.tryLock(5, 5, false));
+            assertNull(fourth.tryLock(0, 25, false));
+            first.close();
+            second.close();
+            third.close();
+            assertNotNull(fourth.tryLock(0, 25, false));
+        }
+
+        // releasing shared locks keeps the range of the ones still held, even
+        // where segments covered by the same number of locks were joined
+        try (
+            FileChannel first = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel second = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel third = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            );
+            FileChannel fourth = channel(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            FileLock lock1 = first.lock(0, 10, true);
+            FileLock lock2 = second.lock(10, 10, true);
+            FileLock lock3 = third.lock(10, 2, true);
+            lock3.release();
+            lock1.release();
+            assertTrue(lock2.isValid());
+            assertNull(fourth.tryLock(15, 1, false));
+            assertNull(fourth.tryLock(10, 1, false));
+            assertNotNull(fourth.tryLock(0, 10, false));
+            lock2.release();
+            assertNotNull(fourth.tryLock(10, 10, false));
+        }
+    }
+
+    @Test
+    public void testConcurrentLocks() throws Exception {
+        int threads = 64;
+        int iterations = 200;
+        int[] counter = { 0 };
+
+        try (
+            ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long region = i * 100L;
+                results.add(
+                    executor.submit(() -> {
+                        try (
+                            FileChannel channel = channel(
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE
+                            );
+                        ) {
+                            for (int j = 0; j < iterations; j++) {
+                                // disjoint regions never wait for each other
+                                channel.lock(region + 1000, 100, false).close();
+                                // while a shared region serializes updates
+                                FileLock lock = channel.lock(0, 1, false);
+                                counter[0]++;
+                                lock.release();
+                            }
+                        }
+                        return null;
+                    })
+                );
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+        assertEquals(threads * iterations, counter[0]);
+    }
+
+    @Test
+    public void testSteadyStateIoDoesNotAllocate() throws Exception {
+        ThreadMXBean threads =
+            (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        ByteBuffer[] bufs = new ByteBuffer[] {
+            ByteBuffer.allocate(2048),
+            ByteBuffer.allocate(2048),
+        };
+        int iterations = 10_000;
+
+        try (
+            FileChannel channel = channel(
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ
+            )
+        ) {
+            // allocate the pages and let the JIT settle first
+            doSmallIo(channel, buf, bufs, iterations);
+
+            long before = threads.getCurrentThreadAllocatedBytes();
+            doSmallIo(channel, buf, bufs, iterations);
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+            // 6 I/O calls per iteration, allow for a little measurement noise
+            assertTrue(
+                allocated < iterations,
+                "allocated %d bytes in %d I/O calls".formatted(
+                    allocated,
+                    6 * iterations
+                )
+            );
+        }
+    }
+
+    private static void doSmallIo(
+        FileChannel channel,
+        ByteBuffer buf,
+        ByteBuffer[] bufs,
+        int iterations
+    ) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            channel.write(buf.clear(), 0);
+            channel.read(buf.clear(), 0);
+
+            channel.position(4096);
+            channel.write(buf.clear());
+            bufs[0].clear();
+            bufs[1].clear();
+            channel.write(bufs);
+
+            channel.position(4096);
+            channel.read(buf.clear());
+            bufs[0].clear();
+            bufs[1].clear();
+            channel.read(bufs);
+        }
+    }
 }
@@ -23,6 +23,9 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Collections;
 import org.junit.jupiter.api.Test;
@@ -90,4 +93,40 @@ class JnmofsFileSystemProviderTest {
     void getNotCreatedThrows() throws Exception {
         assertThrows(FileSystemNotFoundException.class, this.utils::getTestFs);
     }
+
+    @Test
+    void existenceProbes() throws Exception {
+        FileSystem testFs = utils.createTestFs("probes");
+        FileSystemProvider provider = testFs.provider();
+        Path dir = testFs.getPath("/dir");
+        Path file = dir.resolve("file");
+        Files.createDirectory(dir);
+        Files.createFile(file);
+
+        assertTrue(provider.exists(dir));
+        assertTrue(provider.exists(file));
+        assertFalse(provider.exists(dir.resolve("missing")));
+        // a file can't have members
+        assertFalse(provider.exists(file.resolve("missing")));
+
+        assertTrue(
+            provider
+                .readAttributesIfExists(dir, BasicFileAttributes.class)
+                .isDirectory()
+        );
+        assertNull(
+            provider.readAttributesIfExists(
+                dir.resolve("missing"),
+                BasicFileAttributes.class
+            )
+        );
+
+        // Files uses the above for these
+        assertTrue(Files.exists(file));
+        assertTrue(Files.isRegularFile(file));
+        assertFalse(Files.isDirectory(file));
+        assertFalse(Files.exists(dir.resolve("missing")));
+        assertFalse(Files.isDirectory(dir.resolve("missing")));
+        assertTrue(Files.notExists(dir.resolve("missing")));
+    }
 }
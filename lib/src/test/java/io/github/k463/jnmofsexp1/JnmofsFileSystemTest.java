@@ -19,9 +19,32 @@ package io.github.k463.jnmofsexp1;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+import io.github.k463.jnmofsexp1.impl.ChunkStore;
+import io.github.k463.jnmofsexp1.trace.TraceEvent;
+import io.github.k463.jnmofsexp1.trace.TraceEvent.Op;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import org.junit.jupiter.api.Test;
 
 public class JnmofsFileSystemTest {
@@ -52,4 +75,651 @@ public class JnmofsFileSystemTest {
             assertFalse(root.iterator().hasNext());
         }
     }
+
+    @Test
+    public void testNamespaceBinding() throws Exception {
+        FileSystem testFs = utils.createTestFs(
+            "tnbfs0",
+            Map.of("roots.0.name", "", "roots.1.name", "@v1")
+        );
+        Path path = testFs.getPath("/dir/../file");
+        Path relative = testFs.getPath("./file");
+        Path other = testFs.getPath("@v1/file");
+
+        FileStore store = Files.getFileStore(testFs.getPath("/"));
+        assertEquals(store, Files.getFileStore(path));
+        // the namespace is cached on the path, so asking again is the same
+        assertEquals(store, Files.getFileStore(path));
+        assertEquals(store, Files.getFileStore(relative));
+        assertNotEquals(store, Files.getFileStore(other));
+
+        Files.write(path, "root".getBytes());
+        Files.write(other, "@v1".getBytes());
+        assertArrayEquals("root".getBytes(), Files.readAllBytes(relative));
+        assertArrayEquals("@v1".getBytes(), Files.readAllBytes(other));
+
+        testFs.close();
+        assertThrows(ClosedFileSystemException.class, () ->
+            Files.size(path)
+        );
+    }
+
+    @Test
+    public void testCrossNamespaceMove() throws Exception {
+        FileSystem testFs = utils.createTestFs(
+            "tcnmfs0",
+            Map.of("roots.0.name", "", "roots.1.name", "@v1")
+        );
+        Path dir = testFs.getPath("/dir");
+        Path file = dir.resolve("file");
+        Files.createDirectories(dir);
+        Files.write(file, "data".getBytes());
+        // same names in another namespace aren't a subdirectory of dir
+        Path target = testFs.getPath("@v1/dir/sub");
+        Files.createDirectories(target.getParent());
+
+        Files.move(dir, target);
+        assertFalse(Files.exists(dir));
+        assertArrayEquals(
+            "data".getBytes(),
+            Files.readAllBytes(target.resolve("file"))
+        );
+        assertFalse(Files.isSameFile(target, testFs.getPath("/")));
+        assertTrue(
+            Files.isSameFile(target, testFs.getPath("@v1/dir/../dir/sub"))
+        );
+        assertTrue(target.toUri().toString().endsWith("/"));
+        assertThrows(UnsupportedOperationException.class, () ->
+            Files.move(target.getParent(), target.resolve("nested"))
+        );
+    }
+
+    @Test
+    public void testPathHandles() throws Exception {
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "tphfs0"
+        );
+        Path dir = testFs.getPath("/dir");
+        Path file = dir.resolve("file");
+        Files.createDirectory(dir);
+        Files.write(file, "data".getBytes());
+
+        JnmofsPathHandle dirHandle = testFs.getHandle(dir);
+        JnmofsPathHandle handle = testFs.getHandle(testFs.getPath("dir/file"));
+        assertEquals(file, handle.path());
+        assertEquals(List.of("file"), dirHandle.list());
+        assertEquals(4, handle.readAttributes().size());
+        try (FileChannel channel = handle.newFileChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            channel.read(buf);
+            assertArrayEquals("data".getBytes(), buf.array());
+        }
+        assertThrows(FileAlreadyExistsException.class, () ->
+            handle.newFileChannel(StandardOpenOption.CREATE_NEW)
+        );
+        assertThrows(NotDirectoryException.class, handle::list);
+        assertThrows(NoSuchFileException.class, () ->
+            testFs.getHandle(dir.resolve("missing"))
+        );
+
+        // unrelated changes don't affect the handle
+        Files.createFile(dir.resolve("other"));
+        Files.delete(dir.resolve("other"));
+        assertFalse(handle.isStale());
+
+        // moving the parent makes the handle stale, moving it back doesn't
+        Files.move(dir, testFs.getPath("/moved"));
+        assertTrue(handle.isStale());
+        assertTrue(dirHandle.isStale());
+        assertThrows(NoSuchFileException.class, handle::readAttributes);
+        Files.move(testFs.getPath("/moved"), dir);
+        assertFalse(handle.isStale());
+        assertEquals(4, handle.readAttributes().size());
+
+        // a new file at the same path is a different object
+        Files.delete(file);
+        assertTrue(handle.isStale());
+        Files.write(file, "new data".getBytes());
+        assertTrue(handle.isStale());
+        assertThrows(NoSuchFileException.class, handle::newFileChannel);
+        assertEquals(8, testFs.getHandle(file).readAttributes().size());
+        assertFalse(dirHandle.isStale());
+
+        testFs.close();
+        assertThrows(ClosedFileSystemException.class, dirHandle::list);
+    }
+
+    @Test
+    public void testDirectStorage() throws Exception {
+        FileSystem testFs = utils.createTestFs(
+            "tdsfs0",
+            Map.of("storage", "direct")
+        );
+        Path file = testFs.getPath("/direct-file");
+        byte[] data = new byte[100_000];
+        Arrays.fill(data, (byte) 'x');
+        // off-heap contents are limited by the JVM's direct memory limit,
+        // not by the heap it happens to default to
+        FileStore store = Files.getFileStore(testFs.getPath("/"));
+        long maxDirectMemory = Long.parseLong(
+            ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                .getVMOption("MaxDirectMemorySize")
+                .getValue()
+        );
+        assertEquals(
+            maxDirectMemory > 0
+                ? maxDirectMemory
+                : Runtime.getRuntime().maxMemory(),
+            store.getTotalSpace()
+        );
+        assertEquals(store.getTotalSpace(), store.getUnallocatedSpace());
+
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            assertEquals(data.length, channel.write(ByteBuffer.wrap(data)));
+        }
+        assertEquals(data.length, Files.size(file));
+
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.READ
+            )
+        ) {
+            ByteBuffer buf = ByteBuffer.allocate(data.length);
+            assertEquals(data.length, channel.read(buf));
+            assertArrayEquals(data, buf.array());
+
+            // contents stay readable through channels opened before deletion
+            Files.delete(file);
+            assertEquals(data.length, channel.read(buf.clear(), 0));
+            assertArrayEquals(data, buf.array());
+            assertTrue(store.getUnallocatedSpace() < store.getTotalSpace());
+        }
+        // the memory is kept for new contents, but counts as unallocated
+        assertEquals(store.getTotalSpace(), store.getUnallocatedSpace());
+
+        // released pages are reused zero-filled
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.READ
+            )
+        ) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1 }), 10);
+            ByteBuffer buf = ByteBuffer.allocate(11);
+            assertEquals(11, channel.read(buf, 0));
+            assertArrayEquals(
+                new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 },
+                buf.array()
+            );
+        }
+
+        assertTrue(testFs.isOpen());
+        testFs.close();
+        assertFalse(testFs.isOpen());
+        assertThrows(ClosedFileSystemException.class, () -> Files.size(file));
+    }
+
+    @Test
+    public void testCloseWithOpenChannels() throws Exception {
+        FileSystem testFs = utils.createTestFs(
+            "tdsfs1",
+            Map.of("storage", "direct")
+        );
+        Path file = testFs.getPath("/open-file");
+        FileChannel channel = FileChannel.open(
+            file,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.READ
+        );
+        channel.write(ByteBuffer.wrap(new byte[100_000]));
+
+        // reads racing with the close either complete or find the channel
+        // closed, they never see the off-heap memory freed under them
+        CompletableFuture<Throwable> reader = CompletableFuture.supplyAsync(
+            () -> {
+                ByteBuffer buf = ByteBuffer.allocate(1000);
+                try {
+                    while (true) {
+                        channel.read(buf.clear(), 50_000);
+                    }
+                } catch (Throwable e) {
+                    return e;
+                }
+            }
+        );
+        testFs.close();
+        assertFalse(channel.isOpen());
+        Throwable readFailure = reader.get();
+        assertTrue(
+            readFailure instanceof ClosedChannelException,
+            readFailure::toString
+        );
+
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        assertThrows(ClosedChannelException.class, () -> channel.read(buf, 0));
+        assertThrows(ClosedChannelException.class, () -> channel.read(buf));
+        assertThrows(ClosedChannelException.class, () ->
+            channel.write(buf.flip(), 0)
+        );
+        assertThrows(ClosedChannelException.class, channel::size);
+    }
+
+    @Test
+    public void testCopyOnWrite() throws Exception {
+        // released pages are zeroed right away with direct storage, so pages
+        // handed back while still shared would show up as zeros
+        FileSystem testFs = utils.createTestFs(
+            "tcowfs0",
+            Map.of("storage", "direct")
+        );
+        Path original = testFs.getPath("/original");
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+        Files.write(original, data);
+
+        Path copy1 = testFs.getPath("/copy1");
+        Path copy2 = testFs.getPath("/copy2");
+        Files.copy(original, copy1);
+        Files.copy(copy1, copy2);
+
+        // a write only changes the file written to
+        try (
+            FileChannel channel = FileChannel.open(
+                copy1,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            channel.write(ByteBuffer.wrap("copy1".getBytes()), 20_000);
+        }
+        byte[] expected = data.clone();
+        System.arraycopy("copy1".getBytes(), 0, expected, 20_000, 5);
+        assertArrayEquals(expected, Files.readAllBytes(copy1));
+        assertArrayEquals(data, Files.readAllBytes(original));
+        assertArrayEquals(data, Files.readAllBytes(copy2));
+
+        // the remaining files keep their contents when the others go away
+        Files.delete(original);
+        assertArrayEquals(data, Files.readAllBytes(copy2));
+        try (
+            FileChannel channel = FileChannel.open(
+                copy2,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+            )
+        ) {
+            channel.write(ByteBuffer.wrap("tail".getBytes()));
+            channel.truncate(50_000);
+        }
+        Files.delete(copy1);
+        assertArrayEquals(
+            Arrays.copyOf(data, 50_000),
+            Files.readAllBytes(copy2)
+        );
+
+        // mapped ranges aren't shared with copies
+        try (
+            FileChannel channel = FileChannel.open(
+                copy2,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, 10);
+            Files.copy(copy2, original);
+            mapped.put(0, (byte) 'm');
+        }
+        assertEquals('m', Files.readAllBytes(copy2)[0]);
+        assertEquals(data[0], Files.readAllBytes(original)[0]);
+        testFs.close();
+    }
+
+    @Test
+    public void testDedup() throws Exception {
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "tddfs0",
+            Map.of("storage", "direct", "dedup", "true")
+        );
+        ChunkStore store = testFs
+            .getNamespace(testFs.getPath("/"))
+            .chunkStore();
+        // 10 full pages and a partial one, which isn't deduplicated
+        byte[] data = new byte[10 * 16384 + 100];
+        new Random(42).nextBytes(data);
+        for (int i = 0; i < 20; i++) {
+            Files.write(testFs.getPath("/file" + i), data);
+        }
+        assertEquals(10, store.size());
+
+        // writing to a shared page only changes the file written to
+        try (
+            FileChannel channel = FileChannel.open(
+                testFs.getPath("/file0"),
+                StandardOpenOption.WRITE
+            )
+        ) {
+            channel.write(ByteBuffer.wrap("file0".getBytes()), 20_000);
+        }
+        assertEquals(11, store.size());
+        byte[] expected = data.clone();
+        System.arraycopy("file0".getBytes(), 0, expected, 20_000, 5);
+        assertArrayEquals(
+            expected,
+            Files.readAllBytes(testFs.getPath("/file0"))
+        );
+        for (int i = 1; i < 20; i++) {
+            assertArrayEquals(
+                data,
+                Files.readAllBytes(testFs.getPath("/file" + i))
+            );
+        }
+
+        // pages shared through copies and the store are both counted
+        Files.copy(testFs.getPath("/file1"), testFs.getPath("/copy"));
+        for (int i = 0; i < 20; i++) {
+            Files.delete(testFs.getPath("/file" + i));
+        }
+        assertEquals(10, store.size());
+        assertArrayEquals(data, Files.readAllBytes(testFs.getPath("/copy")));
+        Files.write(testFs.getPath("/again"), data);
+        assertEquals(10, store.size());
+        Files.delete(testFs.getPath("/copy"));
+        Files.delete(testFs.getPath("/again"));
+        assertEquals(0, store.size());
+
+        // disabled by default
+        JnmofsFileSystem plainFs = (JnmofsFileSystem) utils.createTestFs(
+            "tddfs1"
+        );
+        assertNull(plainFs.getNamespace(plainFs.getPath("/")).chunkStore());
+        plainFs.close();
+        testFs.close();
+    }
+
+    @Test
+    public void testDedupAcrossNamespaces() throws Exception {
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "tddfs2",
+            Map.of("roots.0.name", "", "roots.1.name", "@v1", "dedup", "true")
+        );
+        ChunkStore rootStore = testFs
+            .getNamespace(testFs.getPath("/"))
+            .chunkStore();
+        ChunkStore v1Store = testFs
+            .getNamespace(testFs.getPath("@v1/"))
+            .chunkStore();
+        Random random = new Random(42);
+        byte[] page = new byte[16384];
+        random.nextBytes(page);
+        Files.write(testFs.getPath("/file"), page);
+        Files.createDirectories(testFs.getPath("/dir"));
+        Files.write(testFs.getPath("/dir/file"), page);
+        assertEquals(1, rootStore.size());
+
+        // pages written to a file after it was copied or moved into another
+        // namespace are shared through the store of that namespace
+        Files.copy(testFs.getPath("/file"), testFs.getPath("@v1/copy"));
+        Files.move(testFs.getPath("/file"), testFs.getPath("@v1/file"));
+        Files.move(testFs.getPath("/dir"), testFs.getPath("@v1/dir"));
+        for (String name : List.of("@v1/copy", "@v1/file", "@v1/dir/file")) {
+            random.nextBytes(page);
+            Files.write(
+                testFs.getPath(name),
+                page,
+                StandardOpenOption.APPEND
+            );
+        }
+        assertEquals(1, rootStore.size());
+        assertEquals(3, v1Store.size());
+
+        // the pages shared before stay shared until the last file lets go
+        Files.delete(testFs.getPath("@v1/copy"));
+        Files.delete(testFs.getPath("@v1/file"));
+        assertEquals(1, rootStore.size());
+        assertEquals(1, v1Store.size());
+        Files.delete(testFs.getPath("@v1/dir/file"));
+        assertEquals(0, rootStore.size());
+        assertEquals(0, v1Store.size());
+        testFs.close();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        // long enough for the background passes never to run, passes are
+        // made by the test instead
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "tcmpfs0",
+            Map.of(
+                "storage",
+                "direct",
+                "compress",
+                "true",
+                "compress.idle",
+                "3600000"
+            )
+        );
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 1_000_000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] data = text.toString().getBytes();
+        byte[] noise = new byte[100_000];
+        new Random(42).nextBytes(noise);
+        Path file = testFs.getPath("/file");
+        Path random = testFs.getPath("/random");
+        Files.write(file, data);
+        Files.write(random, noise);
+        FileStore store = Files.getFileStore(file);
+        long unallocated = store.getUnallocatedSpace();
+        assertTrue(unallocated <= store.getTotalSpace());
+
+        // files are only compressed once a whole pass went by without them
+        // being used
+        testFs.compressColdFiles();
+        assertEquals(unallocated, store.getUnallocatedSpace());
+        testFs.compressColdFiles();
+        long compressed = store.getUnallocatedSpace();
+        assertTrue(compressed > unallocated + 500_000);
+        assertEquals(data.length, Files.size(file));
+
+        // reading compressed pages inflates them back into the file
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            channel.read(buf, 20_000);
+            assertEquals(data[20_000], buf.get(0));
+        }
+        long inflated = store.getUnallocatedSpace();
+        assertTrue(inflated < compressed && inflated > unallocated);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertArrayEquals(noise, Files.readAllBytes(random));
+        assertEquals(unallocated, store.getUnallocatedSpace());
+
+        // and aren't compressed again by the next pass, as they were used
+        testFs.compressColdFiles();
+        assertEquals(unallocated, store.getUnallocatedSpace());
+
+        // writes, truncation and copies inflate the pages they need
+        testFs.compressColdFiles();
+        testFs.compressColdFiles();
+        assertEquals(compressed, store.getUnallocatedSpace());
+        Files.copy(file, testFs.getPath("/copy"));
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            channel.write(ByteBuffer.wrap("file".getBytes()), 20_000);
+            channel.truncate(100_000);
+        }
+        byte[] expected = Arrays.copyOf(data, 100_000);
+        System.arraycopy("file".getBytes(), 0, expected, 20_000, 4);
+        assertArrayEquals(expected, Files.readAllBytes(file));
+        assertArrayEquals(data, Files.readAllBytes(testFs.getPath("/copy")));
+
+        // compressed pages are dropped along with their files
+        testFs.compressColdFiles();
+        testFs.compressColdFiles();
+        Files.delete(file);
+        Files.delete(random);
+        Files.delete(testFs.getPath("/copy"));
+        assertEquals(store.getTotalSpace(), store.getUnallocatedSpace());
+        testFs.close();
+    }
+
+    @Test
+    public void testCloseWhileCompressing() throws Exception {
+        // other filesystems may have compression threads of their own
+        long compressionThreads = countCompressionThreads();
+        // passes run back to back, so closing is likely to find one running
+        FileSystem testFs = utils.createTestFs(
+            "tcmpfs2",
+            Map.of(
+                "storage",
+                "direct",
+                "compress",
+                "true",
+                "compress.idle",
+                "1"
+            )
+        );
+        byte[] data = new byte[10 * 16384];
+        for (int i = 0; i < 100; i++) {
+            Files.write(testFs.getPath("/file" + i), data);
+        }
+        testFs.close();
+        // the pages are only freed once no pass can use them anymore
+        assertEquals(compressionThreads, countCompressionThreads());
+    }
+
+    private static long countCompressionThreads() {
+        return Thread.getAllStackTraces()
+            .keySet()
+            .stream()
+            .filter(t -> t.getName().equals("jnmofs-compress"))
+            .count();
+    }
+
+    @Test
+    public void testCompressionWithDedup() throws Exception {
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "tcmpfs1",
+            Map.of(
+                "dedup",
+                "true",
+                "compress",
+                "true",
+                "compress.idle",
+                "3600000"
+            )
+        );
+        ChunkStore chunks = testFs
+            .getNamespace(testFs.getPath("/"))
+            .chunkStore();
+        // 10 full pages of text each, shared by two files or by one
+        byte[] shared = new byte[10 * 16384];
+        byte[] single = new byte[10 * 16384];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = (byte) ('a' + (i / 100) % 26);
+            single[i] = (byte) ('A' + (i / 100) % 26);
+        }
+        Files.write(testFs.getPath("/shared1"), shared);
+        Files.write(testFs.getPath("/shared2"), shared);
+        Files.write(testFs.getPath("/single"), single);
+        assertEquals(20, chunks.size());
+        FileStore store = Files.getFileStore(testFs.getPath("/"));
+        long unallocated = store.getUnallocatedSpace();
+
+        // only pages no other file refers to are compressed
+        testFs.compressColdFiles();
+        testFs.compressColdFiles();
+        assertEquals(10, chunks.size());
+        long compressed = store.getUnallocatedSpace();
+        assertTrue(compressed > unallocated + 100_000);
+        assertArrayEquals(
+            single,
+            Files.readAllBytes(testFs.getPath("/single"))
+        );
+        assertArrayEquals(
+            shared,
+            Files.readAllBytes(testFs.getPath("/shared1"))
+        );
+
+        // until the other files let go of them
+        Files.delete(testFs.getPath("/shared1"));
+        testFs.compressColdFiles();
+        testFs.compressColdFiles();
+        testFs.compressColdFiles();
+        assertEquals(0, chunks.size());
+        assertTrue(store.getUnallocatedSpace() > compressed + 100_000);
+        assertArrayEquals(
+            shared,
+            Files.readAllBytes(testFs.getPath("/shared2"))
+        );
+        testFs.close();
+    }
+
+    @Test
+    public void testUnknownStorage() throws Exception {
+        assertThrows(IllegalArgumentException.class, () ->
+            utils.createTestFs("tusfs0", Map.of("storage", "nvram"))
+        );
+    }
+
+    @Test
+    public void testTracing() throws Exception {
+        JnmofsFileSystem untracedFs = (JnmofsFileSystem) utils.createTestFs(
+            "ttfs0"
+        );
+        assertFalse(untracedFs.tracer().isEnabled());
+        Files.createFile(untracedFs.getPath("/file"));
+        assertTrue(untracedFs.tracer().recentEvents().isEmpty());
+
+        List<TraceEvent> sunk = new CopyOnWriteArrayList<>();
+        JnmofsFileSystem testFs = (JnmofsFileSystem) utils.createTestFs(
+            "ttfs1",
+            Map.of(
+                "trace.sink",
+                (Consumer<TraceEvent>) sunk::add,
+                "trace.buffer.size",
+                3
+            )
+        );
+        assertTrue(testFs.tracer().isEnabled());
+
+        Path file = testFs.getPath("/file");
+        try (
+            FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            channel.write(ByteBuffer.wrap("hello".getBytes()));
+        }
+
+        List<Op> ops = sunk.stream().map(TraceEvent::op).toList();
+        assertTrue(ops.contains(Op.INIT));
+        assertTrue(ops.contains(Op.CREATE));
+        assertEquals(
+            List.of(Op.OPEN, Op.WRITE, Op.CLOSE),
+            ops.subList(ops.size() - 3, ops.size())
+        );
+        TraceEvent write = sunk.get(sunk.size() - 2);
+        assertEquals(file, write.path());
+        assertEquals(5, write.bytes());
+
+        // the ring buffer capacity is rounded up to a power of two
+        List<TraceEvent> recent = testFs.tracer().recentEvents();
+        assertEquals(sunk.subList(sunk.size() - 4, sunk.size()), recent);
+    }
 }
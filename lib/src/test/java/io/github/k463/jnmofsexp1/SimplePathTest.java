@@ -97,6 +97,36 @@ public class SimplePathTest {
         assertEquals("dir2" + sep + "file.txt", normalizedPath.toString());
     }
 
+    @Test
+    public void testNamesAndEquality() throws Exception {
+        FileSystem mfs7 = utils.createTestFs("mfs7");
+
+        // empty names are dropped
+        Path path = mfs7.getPath("/foo//bar/");
+        assertEquals("/foo/bar", path.toString());
+        assertEquals(2, path.getNameCount());
+        assertEquals("bar", path.getFileName().toString());
+        assertEquals(mfs7.getPath("/foo"), path.getParent());
+        assertEquals(mfs7.getPath("/"), path.getParent().getParent());
+        assertEquals(mfs7.getPath("foo/bar"), path.subpath(0, 2));
+
+        assertTrue(path.startsWith(mfs7.getPath("/foo")));
+        assertTrue(path.startsWith(mfs7.getPath("/")));
+        assertFalse(path.startsWith(mfs7.getPath("/fo")));
+        assertFalse(path.startsWith(mfs7.getPath("foo")));
+        assertTrue(
+            mfs7.getPath("/foo/./bar").startsWith(mfs7.getPath("/foo/."))
+        );
+
+        // paths are equal if they are once normalized, so their hash codes
+        // have to be the same too
+        Path other = mfs7.getPath("/foo/./baz/../bar");
+        assertEquals(path, other);
+        assertEquals(path.hashCode(), other.hashCode());
+        assertEquals(0, path.compareTo(other));
+        assertNotEquals(path, mfs7.getPath("foo/bar"));
+    }
+
     static Stream<Arguments> relativizeTestArgsProvider() {
         return Stream.of(
             Arguments.of("base/dir", "base/dir", "."),
@@ -192,6 +222,54 @@ public class SimplePathTest {
         // TODO: CWD tests
     }
 
+    @Test
+    public void testNestedRoots() throws Exception {
+        FileSystem mfs8 = utils.createTestFs(
+            "mfs8",
+            Map.of(
+                "roots.0.name",
+                "",
+                "roots.1.name",
+                "@v1",
+                "roots.2.name",
+                "@v10",
+                "roots.3.name",
+                "@v1/sub",
+                "roots.4.name",
+                "/vol"
+            )
+        );
+
+        record Case(String path, String root, String relative) {}
+
+        List<Case> cases = List.of(
+            new Case("@v1", "@v1", ""),
+            new Case("@v1/", "@v1", ""),
+            new Case("@v1/foo", "@v1", "foo"),
+            new Case("@v10/foo", "@v10", "foo"),
+            new Case("@v1/sub/foo", "@v1/sub", "foo"),
+            new Case("@v1/subdir/foo", "@v1", "subdir/foo"),
+            new Case("/vol/foo", "/vol", "foo"),
+            new Case("/volume/foo", "/", "volume/foo"),
+            new Case("@v2/foo", null, "@v2/foo")
+        );
+
+        for (var c : cases) {
+            Path path = mfs8.getPath(c.path);
+            assertEquals(
+                c.root == null ? null : mfs8.getPath(c.root),
+                path.getRoot(),
+                c.path
+            );
+            int names = path.getNameCount();
+            assertEquals(
+                c.relative,
+                names == 0 ? "" : path.subpath(0, names).toString(),
+                c.path
+            );
+        }
+    }
+
     @Test
     public void testEdgeNonDefaultRoot() throws Exception {
         FileSystem mfs3 = utils.createTestFs(
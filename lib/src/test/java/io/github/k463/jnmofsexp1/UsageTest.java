@@ -21,16 +21,27 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.Test;
 
 public class UsageTest {
@@ -205,4 +216,394 @@ public class UsageTest {
         assertTrue(Files.notExists(l0dir1l1dir0.resolve("l2file0")));
         assertTrue(Files.notExists(l0dir1l1dir0.resolve("l2file1")));
     }
+
+    @Test
+    void testAtomicDirectoryRename() throws Exception {
+        var mfs4 = FileSystems.newFileSystem(
+            utils.getFsUri("usage4"),
+            Collections.singletonMap("separator", "/")
+        );
+        var dir = mfs4.getPath("dir");
+        var subdir = dir.resolve("subdir");
+        Files.createDirectories(subdir);
+        for (int i = 0; i < 1000; i++) {
+            Files.createFile(dir.resolve("file" + i));
+        }
+        Files.write(subdir.resolve("data"), "data".getBytes());
+
+        var renamed = mfs4.getPath("other/renamed");
+        Files.createDirectory(renamed.getParent());
+        Files.move(dir, renamed, StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(Files.notExists(dir));
+        assertTrue(Files.notExists(subdir.resolve("data")));
+        try (var list = Files.list(renamed)) {
+            assertEquals(1001, list.count());
+        }
+        assertArrayEquals(
+            "data".getBytes(),
+            Files.readAllBytes(renamed.resolve("subdir/data"))
+        );
+        // the moved objects can be changed through their new paths
+        Files.delete(renamed.resolve("file0"));
+        Files.move(renamed.resolve("subdir"), dir);
+        assertTrue(Files.exists(dir.resolve("data")));
+    }
+
+    @Test
+    void testCopy() throws Exception {
+        var mfs8 = FileSystems.newFileSystem(
+            utils.getFsUri("usage8"),
+            Collections.singletonMap("separator", "/")
+        );
+        var file = mfs8.getPath("/file");
+        var dir = mfs8.getPath("/dir");
+        Files.write(file, "original".getBytes());
+        Files.createDirectory(dir);
+        Files.createFile(dir.resolve("member"));
+
+        var copy = dir.resolve("copy");
+        Files.copy(file, copy);
+        assertArrayEquals("original".getBytes(), Files.readAllBytes(copy));
+        assertFalse(Files.isSameFile(file, copy));
+        assertThrows(FileAlreadyExistsException.class, () ->
+            Files.copy(file, copy)
+        );
+        // copying a file onto itself does nothing
+        Files.copy(copy, mfs8.getPath("dir/../dir/copy"));
+
+        Files.write(file, "changed".getBytes());
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        assertArrayEquals("changed".getBytes(), Files.readAllBytes(copy));
+
+        // directories are copied without their members
+        var dirCopy = mfs8.getPath("/dir-copy");
+        Files.copy(dir, dirCopy);
+        assertTrue(Files.isDirectory(dirCopy));
+        try (var list = Files.list(dirCopy)) {
+            assertEquals(0, list.count());
+        }
+        assertThrows(DirectoryNotEmptyException.class, () ->
+            Files.copy(file, dir, StandardCopyOption.REPLACE_EXISTING)
+        );
+        Files.copy(file, dirCopy, StandardCopyOption.REPLACE_EXISTING);
+        assertTrue(Files.isRegularFile(dirCopy));
+
+        assertThrows(NoSuchFileException.class, () ->
+            Files.copy(mfs8.getPath("/missing"), mfs8.getPath("/other"))
+        );
+        assertThrows(NoSuchFileException.class, () ->
+            Files.copy(file, mfs8.getPath("/missing/file"))
+        );
+    }
+
+    @Test
+    void testRecursiveCopy() throws Exception {
+        var mfs9 = FileSystems.newFileSystem(
+            utils.getFsUri("usage9"),
+            Map.of("roots.0.name", "", "roots.1.name", "@v1")
+        );
+        var src = mfs9.getPath("/src");
+        // wide enough to be split into several tasks
+        for (int i = 0; i < 1000; i++) {
+            Files.createDirectories(src.resolve("dir" + i % 10));
+            Files.write(
+                src.resolve("dir" + i % 10 + "/file" + i),
+                ("file" + i).getBytes()
+            );
+        }
+        Files.createDirectories(src.resolve("a/b/c/d"));
+        Files.write(src.resolve("a/b/c/d/deep"), "deep".getBytes());
+
+        for (var target : List.of(
+            mfs9.getPath("/copy"),
+            mfs9.getPath("@v1/copy")
+        )) {
+            Files.copy(src, target, JnmofsCopyOption.RECURSIVE);
+            try (var walk = Files.walk(target)) {
+                assertEquals(1016, walk.count());
+            }
+            assertArrayEquals(
+                "file123".getBytes(),
+                Files.readAllBytes(target.resolve("dir3/file123"))
+            );
+            assertArrayEquals(
+                "deep".getBytes(),
+                Files.readAllBytes(target.resolve("a/b/c/d/deep"))
+            );
+        }
+
+        // the copies are independent of the source
+        Files.write(src.resolve("a/b/c/d/deep"), "changed".getBytes());
+        Files.delete(src.resolve("dir3/file123"));
+        assertArrayEquals(
+            "deep".getBytes(),
+            Files.readAllBytes(mfs9.getPath("/copy/a/b/c/d/deep"))
+        );
+        assertTrue(Files.exists(mfs9.getPath("@v1/copy/dir3/file123")));
+
+        assertThrows(FileAlreadyExistsException.class, () ->
+            Files.copy(src, mfs9.getPath("/copy"), JnmofsCopyOption.RECURSIVE)
+        );
+        assertThrows(UnsupportedOperationException.class, () ->
+            Files.copy(src, src.resolve("a/copy"), JnmofsCopyOption.RECURSIVE)
+        );
+        assertTrue(Files.notExists(src.resolve("a/copy")));
+    }
+
+    @Test
+    void testCrossFileSystemCopy() throws Exception {
+        var mfs10 = FileSystems.newFileSystem(
+            utils.getFsUri("usage10"),
+            Collections.singletonMap("separator", "/")
+        );
+        var mfs11 = FileSystems.newFileSystem(
+            utils.getFsUri("usage11"),
+            Collections.singletonMap("separator", "/")
+        );
+        var src = mfs10.getPath("/src");
+        byte[] large = new byte[1_000_000];
+        new Random(42).nextBytes(large);
+        Files.createDirectories(src.resolve("sub/subsub"));
+        Files.write(src.resolve("sub/subsub/large"), large);
+        for (int i = 0; i < 100; i++) {
+            Files.write(src.resolve("file" + i), ("file" + i).getBytes());
+        }
+
+        var tmpDir = Files.createTempDirectory("jnmofs-cross-fs-copy-test-");
+        try {
+            // out of jnmofs, which Files would copy through streams and not
+            // pass on to the provider, as the paths' providers differ
+            var out = tmpDir.resolve("out");
+            JnmofsFiles.copyTree(src, out, StandardCopyOption.COPY_ATTRIBUTES);
+            assertArrayEquals(
+                large,
+                Files.readAllBytes(out.resolve("sub/subsub/large"))
+            );
+            assertArrayEquals(
+                "file42".getBytes(),
+                Files.readAllBytes(out.resolve("file42"))
+            );
+            assertEquals(
+                Files.getLastModifiedTime(src.resolve("file42")),
+                Files.getLastModifiedTime(out.resolve("file42"))
+            );
+            assertThrows(FileAlreadyExistsException.class, () ->
+                JnmofsFiles.copyTree(src, out)
+            );
+
+            // back into jnmofs, removing the source
+            var back = mfs10.getPath("/back");
+            JnmofsFiles.moveTree(out, back);
+            assertTrue(Files.notExists(out));
+            try (var walk = Files.walk(back)) {
+                assertEquals(104, walk.count());
+            }
+            assertArrayEquals(
+                large,
+                Files.readAllBytes(back.resolve("sub/subsub/large"))
+            );
+        } finally {
+            try (var walk = Files.walk(tmpDir)) {
+                for (var p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(p);
+                }
+            }
+        }
+
+        // between jnmofs filesystems, which Files passes on as they share the
+        // provider
+        var moved = mfs11.getPath("/moved");
+        Files.move(src, moved);
+        assertTrue(Files.notExists(src));
+        assertArrayEquals(
+            large,
+            Files.readAllBytes(moved.resolve("sub/subsub/large"))
+        );
+        Files.copy(moved.resolve("file1"), src);
+        assertArrayEquals("file1".getBytes(), Files.readAllBytes(src));
+        assertThrows(AtomicMoveNotSupportedException.class, () ->
+            Files.move(src, moved, StandardCopyOption.ATOMIC_MOVE)
+        );
+        assertThrows(ProviderMismatchException.class, () ->
+            JnmofsFiles.copyTree(tmpDir, tmpDir.resolve("copy"))
+        );
+    }
+
+    @Test
+    void testLargeDirectory() throws Exception {
+        var mfs5 = FileSystems.newFileSystem(
+            utils.getFsUri("usage5"),
+            Collections.singletonMap("separator", "/")
+        );
+        var dir = mfs5.getPath("large");
+        Files.createDirectory(dir);
+        int files = 100_000;
+        for (int i = 0; i < files; i++) {
+            Files.createFile(dir.resolve("file" + i));
+        }
+
+        try (var stream = Files.newDirectoryStream(dir)) {
+            var iterator = stream.iterator();
+            // the listing is a snapshot, so changes made while iterating don't
+            // show up in it
+            Files.createFile(dir.resolve("late"));
+            Files.delete(dir.resolve("file0"));
+            int count = 0;
+            while (iterator.hasNext()) {
+                assertNotEquals(
+                    "late",
+                    iterator.next().getFileName().toString()
+                );
+                count++;
+            }
+            assertEquals(files, count);
+        }
+        try (var list = Files.list(dir)) {
+            assertEquals(files, list.count());
+        }
+    }
+
+    @Test
+    void testConcurrentNamespaceChanges() throws Exception {
+        var mfs6 = FileSystems.newFileSystem(
+            utils.getFsUri("usage6"),
+            Collections.singletonMap("separator", "/")
+        );
+        var shared = mfs6.getPath("shared");
+        var tmp = mfs6.getPath("tmp");
+        var x = mfs6.getPath("x");
+        var y = mfs6.getPath("y");
+        for (var dir : List.of("shared", "a", "b", "x", "y")) {
+            Files.createDirectory(mfs6.getPath(dir));
+        }
+        int threads = 8;
+        int rounds = 500;
+        var created = new AtomicInteger();
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(
+                    executor.submit(() -> {
+                        var own = mfs6.getPath("tmp/file" + thread);
+                        for (int i = 0; i < rounds; i++) {
+                            // every name is created by exactly one thread
+                            try {
+                                Files.createFile(shared.resolve("file" + i));
+                                created.incrementAndGet();
+                            } catch (FileAlreadyExistsException e) {}
+
+                            // rename back and forth across directories
+                            var a = mfs6.getPath("a/" + thread + "-" + i);
+                            var b = mfs6.getPath("b/" + thread + "-" + i);
+                            Files.createFile(a);
+                            Files.move(a, b);
+                            Files.move(b, a, StandardCopyOption.ATOMIC_MOVE);
+                            Files.delete(a);
+
+                            createInNewDirectory(tmp, own);
+
+                            // moving x and y into each other at the same time
+                            // must never leave them in a cycle
+                            if (thread % 2 == 0) {
+                                moveAndBack(x, y.resolve("x"));
+                            } else {
+                                moveAndBack(y, x.resolve("y"));
+                            }
+                        }
+                        return null;
+                    })
+                );
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+
+        assertEquals(rounds, created.get());
+        try (var list = Files.list(shared)) {
+            assertEquals(rounds, list.count());
+        }
+        try (var list = Files.list(mfs6.getPath("a"))) {
+            assertEquals(0, list.count());
+        }
+        try (var list = Files.list(mfs6.getPath("b"))) {
+            assertEquals(0, list.count());
+        }
+        if (Files.exists(tmp)) {
+            try (var list = Files.list(tmp)) {
+                assertEquals(0, list.count());
+            }
+        }
+        assertTrue(Files.isDirectory(x));
+        assertTrue(Files.isDirectory(y));
+    }
+
+    @Test
+    void testMetadataFootprint() throws Exception {
+        var mfs7 = FileSystems.newFileSystem(
+            utils.getFsUri("usage7"),
+            Collections.singletonMap("separator", "/")
+        );
+        var dir = mfs7.getPath("footprint");
+        Files.createDirectory(dir);
+        int files = 100_000;
+
+        // Everything an empty file takes up, including its name and its entry
+        // in the directory. Heap usage depends on when the GC gets around to
+        // what, so this is only reported to keep an eye on, not asserted.
+        long before = usedHeap();
+        for (int i = 0; i < files; i++) {
+            Files.createFile(dir.resolve("file" + i));
+        }
+        long bytesPerFile = (usedHeap() - before) / files;
+
+        try (var list = Files.list(dir)) {
+            assertEquals(files, list.count());
+        }
+        System.out.println(
+            "UsageTest.testMetadataFootprint: ~%d bytes per file".formatted(
+                bytesPerFile
+            )
+        );
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // A directory can't be deleted out from under a file being created in it,
+    // so once the file was created, it must still be there to delete.
+    private static void createInNewDirectory(Path dir, Path file)
+        throws IOException {
+        try {
+            Files.createDirectory(dir);
+        } catch (FileAlreadyExistsException e) {}
+        try {
+            Files.createFile(file);
+        } catch (NoSuchFileException e) {
+            // dir was deleted by another thread in the meantime
+            return;
+        }
+        Files.delete(file);
+        try {
+            Files.delete(dir);
+        } catch (DirectoryNotEmptyException | NoSuchFileException e) {}
+    }
+
+    private static void moveAndBack(Path from, Path into) throws IOException {
+        try {
+            Files.move(from, into);
+        } catch (NoSuchFileException e) {
+            // the target was moved into from by another thread
+            return;
+        }
+        Files.move(into, from);
+    }
 }